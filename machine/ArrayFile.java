@@ -2,6 +2,8 @@
 
 package nachos.machine;
 
+import java.nio.ByteBuffer;
+
 /**
  * A read-only <tt>OpenFile</tt> backed by a byte array.
  */
@@ -39,6 +41,25 @@ public class ArrayFile extends OpenFileWithPosition {
 	return 0;
     }
 
+    public int read(int position, ByteBuffer[] bufs) {
+	if (position < 0 || position >= array.length)
+	    return 0;
+
+	int amount = 0;
+	for (int i=0; i<bufs.length && position+amount < array.length; i++) {
+	    int length = Math.min(bufs[i].remaining(),
+				  array.length-(position+amount));
+	    bufs[i].put(array, position+amount, length);
+	    amount += length;
+	}
+
+	return amount;
+    }
+
+    public int write(int position, ByteBuffer[] bufs) {
+	return 0;
+    }
+
     private byte[] array;
 }
 
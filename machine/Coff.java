@@ -127,6 +127,15 @@ public class Coff {
 	return entryPoint;
     }
 
+    /**
+     * Return the file containing the executable.
+     *
+     * @return	the executable file.
+     */
+    public OpenFile getFile() {
+	return file;
+    }
+
     /**
      * Close the executable file and release any resources allocated by this
      * loader.
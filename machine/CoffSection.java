@@ -5,6 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -180,7 +181,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -196,10 +197,21 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
+	// read straight into main memory if it is a Java array
+	byte[] page = memory.hasArray() ? memory.array() : new byte[pageSize];
+	int offset = memory.hasArray() ? paddr : 0;
+
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, offset, initlen);
+
+	Arrays.fill(page, offset+initlen, offset+pageSize, (byte) 0);
+
+	if (!memory.hasArray()) {
+	    memory.position(paddr);
+	    memory.put(page);
+	}
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	Machine.processor().invalidateDecodeCache(ppn);
     }
 
     /** The COFF object to which this section belongs. */
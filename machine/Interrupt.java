@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,8 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
+	numPending = 0;
     }
 
     /**
@@ -124,13 +123,13 @@ public final class Interrupt {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocatePending(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	addPending(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +152,46 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private void tick(boolean inKernelMode, int count) {
+	Lib.assertTrue(count > 0);
+
+	// when tracing, show every tick just as if it were taken separately
+	if (Lib.test(dbgInt)) {
+	    for (int i=0; i<count; i++)
+		tick(inKernelMode);
+	    return;
+	}
+	
+	Stats stats = privilege.stats;
+	int ticks = inKernelMode ? Stats.KernelTick : Stats.UserTick;
+
+	// no interrupt may become due before the last tick. One may already be
+	// overdue, for a single tick, only if a handler switched threads before
+	// the rest of the due handlers were invoked
+	Lib.assertTrue(ticksUntilNextInterrupt() > (long) (count-1) * ticks ||
+		       (count == 1 && numInvoking > 0));
+
+	if (inKernelMode) {
+	    stats.kernelTicks += (long) count * ticks;
+	    stats.totalTicks += (long) count * ticks;
+	}
+	else {
+	    stats.userTicks += (long) count * ticks;
+	    stats.totalTicks += (long) count * ticks;
+	}
+
+	enabled = false;
+	checkIfDue();
+	enabled = true;
+    }
+
+    private long ticksUntilNextInterrupt() {
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	return pending[0].time - privilege.stats.totalTicks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,29 +200,36 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (numPending == 0)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending[0].time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+
+	numInvoking++;
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirstPending();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // the handler may schedule another interrupt, reusing next
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    freePending(next);
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
+	numInvoking--;
+
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
@@ -192,8 +238,11 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,14 +250,92 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Return a pending interrupt for the specified time, reusing one whose
+     * handler has already run if possible.
+     */
+    private PendingInterrupt allocatePending(long time, String type,
+					     Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+
+	if (toOccur == null)
+	    toOccur = new PendingInterrupt();
+	else
+	    freeList = toOccur.nextFree;
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+
+	return toOccur;
+    }
+
+    private void freePending(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.nextFree = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add an interrupt to the heap of pending interrupts.
+     */
+    private void addPending(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, pending.length*2);
+
+	// sift up from the new leaf
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!pending[parent].after(toOccur))
+		break;
+	    
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+	
+	pending[i] = toOccur;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt.
+     */
+    private PendingInterrupt removeFirstPending() {
+	Lib.assertTrue(numPending > 0);
+	
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending == 0)
+	    return first;
+
+	// sift the last leaf down from the root
+	int i = 0;
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= numPending)
+		break;
+	    
+	    if (child+1 < numPending && pending[child].after(pending[child+1]))
+		child++;
+
+	    if (!last.after(pending[child]))
+		break;
+	    
+	    pending[i] = pending[child];
+	    i = child;
 	}
 
+	pending[i] = last;
+	
+	return first;
+    }
+
+    private class PendingInterrupt implements Comparable {
 	public int compareTo(Object o) {
 	    PendingInterrupt toOccur = (PendingInterrupt) o;
 
@@ -225,11 +352,17 @@ public final class Interrupt {
 		return 0;
 	}
 
+	boolean after(PendingInterrupt toOccur) {
+	    return time > toOccur.time ||
+		(time == toOccur.time && id > toOccur.id);
+	}
+
 	long time;
 	String type;
 	Runnable handler;
 
 	private long id;
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +370,16 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** A binary heap of pending interrupts, ordered by time and then id. */
+    private PendingInterrupt[] pending;
+    private int numPending;
+    /** Pending interrupts whose handlers have run, available for reuse. */
+    private PendingInterrupt freeList = null;
+    /**
+     * The number of threads part way through invoking due handlers. This is
+     * more than 0 between ticks only if a handler switched threads.
+     */
+    private int numInvoking = 0;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +391,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public long ticksUntilNextInterrupt() {
+	    return Interrupt.this.ticksUntilNextInterrupt();
+	}
     }
 }
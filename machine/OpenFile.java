@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A file that supports reading, writing, and seeking.
@@ -86,6 +87,18 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Get the time this file was last modified, in milliseconds since the
+     * epoch. The time changes whenever the file is written, whether through
+     * Nachos or by the host.
+     *
+     * @return	the time this file was last modified, or 0 if it is not
+     *		known.
+     */
+    public long lastModified() {
+	return 0;
+    }
+
     /**
      * Close this file and release any associated system resources.
      */
@@ -136,6 +149,127 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Read this file starting at the current file pointer into a sequence of
+     * buffers, filling each buffer from its position to its limit before
+     * moving on to the next one. Advances the file pointer and the position
+     * of each buffer by the number of bytes read into it. Stops early if a
+     * read is short. If no bytes could be read because of a fatal error,
+     * returns -1.
+     *
+     * <p>
+     * Buffers backed by an array are read into directly; subclasses that can
+     * transfer into other buffers without copying should override this
+     * method.
+     *
+     * @param	bufs	the buffers to store the bytes in.
+     * @return	the actual number of bytes successfully read, or -1 on failure.
+     */
+    public int read(ByteBuffer[] bufs) {
+	return transfer(-1, bufs, false);
+    }
+
+    /**
+     * Write this file starting at the current file pointer from a sequence of
+     * buffers, writing each buffer from its position to its limit before
+     * moving on to the next one. Advances the file pointer and the position
+     * of each buffer by the number of bytes written from it. Stops early if a
+     * write is short. If no bytes could be written because of a fatal error,
+     * returns -1.
+     *
+     * <p>
+     * Buffers backed by an array are written from directly; subclasses that
+     * can transfer from other buffers without copying should override this
+     * method.
+     *
+     * @param	bufs	the buffers to get the bytes from.
+     * @return	the actual number of bytes successfully written, or -1 on
+     *		failure.
+     */
+    public int write(ByteBuffer[] bufs) {
+	return transfer(-1, bufs, true);
+    }
+
+    /**
+     * Transfer between this file and a sequence of buffers, one buffer at a
+     * time, using the byte array <tt>read()</tt> and <tt>write()</tt>
+     * methods. Buffers backed by an array are transferred directly; others
+     * are copied through a scratch array that is kept between calls.
+     *
+     * @param	pos	the offset in the file at which to start, or -1 to use
+     *			and advance the file pointer instead.
+     * @param	bufs	the buffers to transfer to or from.
+     * @param	writing	<tt>true</tt> to write the buffers to the file,
+     *			<tt>false</tt> to read the file into them.
+     * @return	the actual number of bytes successfully transferred, or -1 on
+     *		failure.
+     */
+    protected int transfer(int pos, ByteBuffer[] bufs, boolean writing) {
+	// take the scratch array, so a transfer on another thread that runs
+	// while this one is blocked allocates its own
+	byte[] data = scratch;
+	scratch = null;
+
+	int amount = 0;
+
+	for (int i=0; i<bufs.length; i++) {
+	    ByteBuffer buf = bufs[i];
+	    int length = buf.remaining();
+	    boolean direct = buf.hasArray();
+	    byte[] array;
+	    int offset;
+
+	    if (direct) {
+		array = buf.array();
+		offset = buf.arrayOffset()+buf.position();
+	    }
+	    else {
+		if (data == null || data.length < length)
+		    data = new byte[length];
+		if (writing)
+		    buf.duplicate().get(data, 0, length);
+
+		array = data;
+		offset = 0;
+	    }
+
+	    int count = transfer((pos == -1) ? -1 : pos+amount,
+				 array, offset, length, writing);
+
+	    if (count == -1) {
+		if (amount == 0)
+		    amount = -1;
+		break;
+	    }
+
+	    if (direct || writing)
+		buf.position(buf.position()+count);
+	    else
+		buf.put(data, 0, count);
+
+	    amount += count;
+	    if (count < length)
+		break;
+	}
+
+	scratch = data;
+	return amount;
+    }
+
+    private int transfer(int pos, byte[] buf, int offset, int length,
+			 boolean writing) {
+	if (pos == -1) {
+	    return writing ? write(buf, offset, length)
+		: read(buf, offset, length);
+	}
+	else {
+	    return writing ? write(pos, buf, offset, length)
+		: read(pos, buf, offset, length);
+	}
+    }
+
     private FileSystem fileSystem;
     private String name;
+    /** The array that buffers without one are copied through, if any. */
+    private byte[] scratch = null;
 }
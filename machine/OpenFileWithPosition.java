@@ -2,6 +2,8 @@
 
 package nachos.machine;
 
+import java.nio.ByteBuffer;
+
 /**
  * An <tt>OpenFile</tt> that maintains a current file position.
  */
@@ -51,6 +53,55 @@ public abstract class OpenFileWithPosition extends OpenFile {
 	return amount;
     }
 
+    public int read(ByteBuffer[] bufs) {
+	int amount = read(position, bufs);
+	if (amount == -1)
+	    return -1;
+
+	position += amount;
+	return amount;
+    }
+
+    public int write(ByteBuffer[] bufs) {
+	int amount = write(position, bufs);
+	if (amount == -1)
+	    return -1;
+
+	position += amount;
+	return amount;
+    }
+
+    /**
+     * Read this file starting at the specified position into a sequence of
+     * buffers, like <tt>read(ByteBuffer[])</tt>, but without using or
+     * changing the file pointer. Buffers without a backing array are copied
+     * through a scratch array; subclasses that can transfer into them without
+     * copying should override this method.
+     *
+     * @param	pos	the offset in the file at which to start reading.
+     * @param	bufs	the buffers to store the bytes in.
+     * @return	the actual number of bytes successfully read, or -1 on failure.
+     */
+    public int read(int pos, ByteBuffer[] bufs) {
+	return transfer(pos, bufs, false);
+    }
+
+    /**
+     * Write this file starting at the specified position from a sequence of
+     * buffers, like <tt>write(ByteBuffer[])</tt>, but without using or
+     * changing the file pointer. Buffers without a backing array are copied
+     * through a scratch array; subclasses that can transfer from them without
+     * copying should override this method.
+     *
+     * @param	pos	the offset in the file at which to start writing.
+     * @param	bufs	the buffers to get the bytes from.
+     * @return	the actual number of bytes successfully written, or -1 on
+     *		failure.
+     */
+    public int write(int pos, ByteBuffer[] bufs) {
+	return transfer(pos, bufs, true);
+    }
+
     /**
      * The current value of the file pointer.
      */
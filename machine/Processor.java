@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,9 +52,53 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	int memorySize = pageSize * numPhysPages;
+	String memoryFile = Config.getString("Processor.memoryFile");
+
+	if (memoryFile != null) {
+	    mainMemory = null;
+	    memory = mapMemory(memoryFile, memorySize);
+	}
+	else if (Config.getBoolean("Processor.offHeapMemory", false)) {
+	    mainMemory = null;
+	    memory = ByteBuffer.allocateDirect(memorySize);
+	}
+	else {
+	    mainMemory = new byte[memorySize];
+	    memory = ByteBuffer.wrap(mainMemory);
+	}
+	memory.order(ByteOrder.LITTLE_ENDIAN);
+	decodeCache = new Decoded[numPhysPages][];
+
+	// the tracing flags are fixed once the machine has started
+	tracing = Lib.test(dbgProcessor) ||
+	    Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble);
+
+	blockTranslation = Config.getBoolean("Processor.blockTranslation",
+					     false);
+	if (blockTranslation)
+	    blockCache = new BasicBlock[numPhysPages][];
+
+	// instructions are only counted on the untraced path
+	boolean profiling = Config.getBoolean("Processor.profile", false);
+	if (profiling && !tracing)
+	    profiler = new Profiler();
+
+	// per-page TLB miss counts have their own switch, so that they can be
+	// kept without the profiler forcing the single-step path
+	recordingTLBMisses = Config.getBoolean("Processor.recordTLBMisses",
+					       false);
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    Lib.assertTrue(tlbSize > 0 && tlbSize <= maxTLBSize);
+
+	    // zero means fully associative
+	    tlbWays = Config.getInteger("Processor.tlbAssociativity", 0);
+	    if (tlbWays == 0)
+		tlbWays = tlbSize;
+	    Lib.assertTrue(tlbWays > 0 && tlbSize % tlbWays == 0);
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -57,6 +108,46 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Map a zero-filled file of the specified size to use as main memory.
+     */
+    private ByteBuffer mapMemory(String fileName, int size) {
+	MemoryMapper mapper = new MemoryMapper(fileName, size);
+	privilege.doPrivileged(mapper);
+
+	Lib.assertTrue(mapper.memory != null, "could not map " + fileName
+		       + ": " + mapper.exception);
+
+	return mapper.memory;
+    }
+
+    private class MemoryMapper implements Runnable {
+	MemoryMapper(String fileName, int size) {
+	    this.fileName = fileName;
+	    this.size = size;
+	}
+
+	public void run() {
+	    try {
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+
+		file.setLength(0);
+		file.setLength(size);
+		memory = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					       0, size);
+		file.close();
+	    }
+	    catch (IOException e) {
+		exception = e;
+	    }
+	}
+
+	private String fileName;
+	private int size;
+	ByteBuffer memory = null;
+	IOException exception = null;
+    }
+
     /**
      * Set the exception handler, called whenever a user exception occurs.
      *
@@ -91,6 +182,12 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	invalidateLastTranslations();
+
+	// tracing needs to see each instruction as the interpreter decodes it
+	if (!tracing)
+	    runFast();
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
@@ -105,6 +202,141 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Return the number of user instructions that can be retired before the
+     * next pending interrupt might become due. Only the tick of the last of
+     * these instructions can cause an interrupt handler to run, so their
+     * ticks can be accounted for in one step.
+     */
+    private int instructionsUntilInterrupt() {
+	long ticks = Math.min(privilege.interrupt.ticksUntilNextInterrupt(),
+			      maxBatchLength);
+
+	return (int) Math.max((ticks + Stats.UserTick - 1) / Stats.UserTick, 1);
+    }
+
+    /**
+     * Start executing instructions at the current PC, without any of the
+     * checks for tracing done by the interpreter. Each instruction is
+     * executed by its translated <tt>Step</tt>, either one at a time or as
+     * part of a translated basic block. Never returns.
+     */
+    private void runFast() {
+	while (true) {
+	    int batch = instructionsUntilInterrupt();
+	    batchRetired = 0;
+	    
+	    try {
+		if (profiler != null) {
+		    while (batchRetired < batch) {
+			runProfiledStep();
+			batchRetired++;
+		    }
+		}
+		else if (blockTranslation) {
+		    while (batchRetired < batch)
+			runBlock(batch);
+		}
+		else {
+		    while (batchRetired < batch) {
+			runStep();
+			batchRetired++;
+		    }
+		}
+	    }
+	    catch (MipsException e) {
+		// the kernel must see the time at which the exception occurred
+		if (batchRetired > 0)
+		    privilege.interrupt.tick(false, batchRetired);
+
+		e.handle();
+		batchRetired = 1;
+	    }
+
+	    privilege.interrupt.tick(false, batchRetired);
+	}
+    }
+
+    /**
+     * Execute the instruction at the current PC using its translated
+     * <tt>Step</tt>.
+     *
+     * @exception	MipsException	if the instruction caused an exception.
+     */
+    private void runStep() throws MipsException {
+	int paddr = fetchTranslate(registers[regPC]);
+	Decoded decoded = predecode(paddr, memory.getInt(paddr));
+
+	if (decoded.step == null)
+	    decoded.step = translateStep(decoded);
+
+	decoded.step.run();
+    }
+
+    /**
+     * Execute the instruction at the current PC like <tt>runStep()</tt>, and
+     * count it in the profile once it has completed.
+     *
+     * @exception	MipsException	if the instruction caused an exception.
+     */
+    private void runProfiledStep() throws MipsException {
+	int pc = registers[regPC];
+	int paddr = fetchTranslate(pc);
+	Decoded decoded = predecode(paddr, memory.getInt(paddr));
+
+	if (decoded.step == null)
+	    decoded.step = translateStep(decoded);
+
+	decoded.step.run();
+
+	profiler.instruction(pc, decoded.operation);
+    }
+
+    /**
+     * Print the execution profile, if profiling is enabled. Called by
+     * <tt>Machine.halt()</tt>.
+     */
+    void printProfile() {
+	if (profiler != null)
+	    profiler.print();
+    }
+
+    /**
+     * Execute the basic block at the current PC, retiring no more than
+     * <i>batch</i> instructions in total since <tt>batchRetired</tt> was last
+     * reset. The caller is responsible for ticking the interrupt controller
+     * once per retired instruction. The block is left early if it
+     * overwrote its own code.
+     *
+     * @param	batch	the number of instructions that can retire before
+     *			an interrupt might become due.
+     *
+     * @exception	MipsException	if an instruction caused an exception.
+     *					The PC still points at that
+     *					instruction.
+     */
+    private void runBlock(int batch) throws MipsException {
+	int pc = registers[regPC];
+	
+	BasicBlock block = lookupBlock(fetchTranslate(pc));
+	Step[] steps = block.steps;
+
+	// the block is straight-line code, unless we are entering it at a
+	// branch delay slot
+	int count = (registers[regNextPC] == pc+4) ? steps.length : 1;
+	count = Math.min(count, batch - batchRetired);
+
+	abortBlock = false;
+
+	for (int i=0; i<count; i++) {
+	    steps[i].run();
+	    batchRetired++;
+
+	    if (abortBlock)
+		break;
+	}
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +407,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	invalidateLastTranslations();
     }
 
     /**
@@ -188,6 +421,64 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. If
+     * this is the same as <tt>getTLBSize()</tt>, the TLB is fully
+     * associative.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the index of the first TLB entry in the set that the specified
+     * virtual page maps to. A valid translation for <i>vpn</i> must be written
+     * to one of the <tt>getTLBAssociativity()</tt> entries starting at this
+     * index.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the first entry of the set for <i>vpn</i>.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return tlbSet(vpn);
+    }
+
+    private int tlbSet(int vpn) {
+	if (tlbWays == tlbSize)
+	    return 0;
+
+	// spread neighbouring pages over the sets
+	int hash = vpn ^ (vpn >>> 5) ^ (vpn >>> 11);
+	return ((hash & 0x7FFFFFFF) % (tlbSize / tlbWays)) * tlbWays;
+    }
+
+    /**
+     * Count a page fault in the statistics. When using a TLB, the processor
+     * only sees TLB misses, so the kernel reports which of them needed a page
+     * to be brought into memory.
+     */
+    public void countPageFault() {
+	privilege.stats.numPageFaults++;
+    }
+
+    /**
+     * Set the identifier of the address space that is about to run. The
+     * processor does not use this to translate addresses; it is only used to
+     * charge TLB misses to the right process in the statistics.
+     *
+     * @param	addressSpace	the address space identifier, such as a
+     *				process ID.
+     */
+    public void setAddressSpace(int addressSpace) {
+	this.addressSpace = addressSpace;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +496,9 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * If the TLB is fully associative, the location of an entry within the TLB
+     * does not affect anything. Otherwise, a valid entry must be written to the
+     * set returned by <tt>getTLBSet()</tt> for its virtual page.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +506,11 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       number / tlbWays == tlbSet(entry.vpn) / tlbWays);
 
 	translations[number] = new TranslationEntry(entry);
+	invalidateLastTranslations();
     }
 
     /**
@@ -232,12 +527,30 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * There is no such array if main memory is off the Java heap (see
+     * <tt>Processor.offHeapMemory</tt> and <tt>Processor.memoryFile</tt>);
+     * code that must work either way should use <tt>getMemoryBuffer()</tt>.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null, "main memory is not on the heap");
+	
 	return mainMemory;
     }
 
+    /**
+     * Return a new little-endian buffer over physical memory. The buffer
+     * shares its contents with main memory, but has its own position and
+     * limit, which start at 0 and <tt>pageSize * getNumPhysPages()</tt>.
+     *
+     * @return	a buffer over main memory.
+     */
+    public ByteBuffer getMemoryBuffer() {
+	return memory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -294,20 +607,117 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
+	if (!Lib.test(dbgProcessor))
+	    return fastTranslate(vaddr, size, writing);
+	
+	System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+			   + (writing ? ", write" : ", read..."));
+
+	int paddr;
+	try {
+	    paddr = fastTranslate(vaddr, size, writing);
+	}
+	catch (MipsException e) {
+	    switch (e.cause) {
+	    case exceptionAddressError:
+		System.out.println("\t\talignment error");
+		break;
+	    case exceptionPageFault:
+		System.out.println("\t\tpage fault");
+		break;
+	    case exceptionTLBMiss:
+		System.out.println("\t\tTLB miss");
+		break;
+	    case exceptionReadOnly:
+		System.out.println("\t\tread-only exception");
+		break;
+	    case exceptionBusError:
+		System.out.println("\t\tbad ppn");
+		break;
+	    }
+	    throw e;
+	}
+
+	System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	return paddr;
+    }
 
+    /**
+     * Translate a virtual address into a physical address, exactly as
+     * <tt>translate()</tt> does but without tracing.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int fastTranslate(int vaddr, int size, boolean writing)
+	throws MipsException {
 	// check alignment
-	if ((vaddr & (size-1)) != 0) {
-	    Lib.debug(dbgProcessor, "\t\talignment error");
+	if ((vaddr & (size-1)) != 0)
 	    throw new MipsException(exceptionAddressError, vaddr);
-	}
 
 	// calculate virtual page number and offset from the virtual address
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// the used bit, and the dirty bit if the page was written, are already
+	// set on the last page translated
+	if (vpn == lastDataVPN && (lastDataWritable || !writing))
+	    return lastDataBase + offset;
+
+	lastDataBase = translatePage(vaddr, vpn, writing);
+	lastDataVPN = vpn;
+	lastDataWritable = writing;
+
+	return lastDataBase + offset;
+    }
+
+    /**
+     * Translate the virtual address of an instruction, exactly as
+     * <tt>fastTranslate(vaddr, 4, false)</tt> does.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int fetchTranslate(int vaddr) throws MipsException {
+	if ((vaddr & 3) != 0)
+	    throw new MipsException(exceptionAddressError, vaddr);
+
+	int vpn = pageFromAddress(vaddr);
+
+	if (vpn != lastFetchVPN) {
+	    lastFetchBase = translatePage(vaddr, vpn, false);
+	    lastFetchVPN = vpn;
+	}
+
+	return lastFetchBase + offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Forget the last translations made for instruction fetches and for data
+     * accesses. This must be done whenever the kernel might change the
+     * current address translation, or clear a used or dirty bit.
+     */
+    private void invalidateLastTranslations() {
+	lastFetchVPN = -1;
+	lastDataVPN = -1;
+    }
+
+    /**
+     * Look up the specified virtual page, check the access, and set the used
+     * and dirty bits.
+     *
+     * @param	vaddr	the virtual address being translated.
+     * @param	vpn	the virtual page containing <i>vaddr</i>.
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address of the start of the page.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translatePage(int vaddr, int vpn, boolean writing)
+	throws MipsException {
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -316,15 +726,15 @@ public final class Processor {
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries in the set for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
+	    int first = tlbSet(vpn);
+	    for (int i=first; i<first+tlbWays; i++) {
 		if (translations[i].valid && translations[i].vpn == vpn) {
 		    entry = translations[i];
 		    break;
@@ -332,34 +742,27 @@ public final class Processor {
 	    }
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
+		if (recordingTLBMisses)
+		    privilege.stats.recordTLBMiss(addressSpace, vpn);
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
-	    Lib.debug(dbgProcessor, "\t\tread-only exception");
+	if (entry.readOnly && writing)
 	    throw new MipsException(exceptionReadOnly, vaddr);
-	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
+	if (ppn < 0 || ppn >= numPhysPages)
 	    throw new MipsException(exceptionBusError, vaddr);
-	}
 
 	// set used and dirty bits as appropriate
 	entry.used = true;
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
-
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
-	return paddr;
+	return ppn*pageSize;
     }
 
     /**
@@ -378,8 +781,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = load(translate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -405,9 +807,64 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+
+	store(translate(vaddr, size, true), size, value);
+    }
+
+    /**
+     * Read <i>size</i> bytes of virtual memory at <i>vaddr</i>, exactly as
+     * <tt>readMem()</tt> does but without tracing.
+     */
+    private int fastReadMem(int vaddr, int size) throws MipsException {
+	return load(fastTranslate(vaddr, size, false), size);
+    }
+
+    /**
+     * Write <i>value</i> to <i>size</i> bytes of virtual memory at
+     * <i>vaddr</i>, exactly as <tt>writeMem()</tt> does but without tracing.
+     */
+    private void fastWriteMem(int vaddr, int size, int value)
+	throws MipsException {
+	store(fastTranslate(vaddr, size, true), size, value);
+    }
+
+    /**
+     * Read <i>size</i> bytes of physical memory at <i>paddr</i>, and return
+     * the sign-extended result, as <tt>Lib.bytesToInt()</tt> would.
+     */
+    private int load(int paddr, int size) {
+	switch (size) {
+	case 4:
+	    return memory.getInt(paddr);
+	case 2:
+	    return memory.getShort(paddr);
+	default:
+	    return memory.get(paddr);
+	}
+    }
+
+    /**
+     * Write <i>value</i> to <i>size</i> bytes of physical memory starting at
+     * <i>paddr</i>.
+     */
+    private void store(int paddr, int size, int value) {
+	// translate() guarantees that the access is aligned
+	switch (size) {
+	case 4:
+	    memory.putInt(paddr, value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memory.put(paddr, (byte) value);
+	    break;
+	}
+
+	// a store may overwrite instructions that were already predecoded
+	int ppn = paddr / pageSize;
+	if (decodeCache[ppn] != null)
+	    invalidateDecodeCache(ppn);
     }
 
     /**
@@ -541,6 +998,12 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays = 4;
+    /** The largest number of TLB entries that can be configured. */
+    private static final int maxTLBSize = 256;
+    /** The address space charged for TLB misses. */
+    private int addressSpace = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -553,8 +1016,45 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /** Main memory for user programs, or <tt>null</tt> if off the heap. */
     private byte[] mainMemory;
+    /** Main memory for user programs, as a little-endian buffer. */
+    private ByteBuffer memory;
+    /** <tt>true</tt> if instructions or memory accesses are being traced. */
+    private boolean tracing;
+    /** Predecoded instructions, indexed by physical page. */
+    private Decoded[][] decodeCache;
+
+    /** <tt>true</tt> if translated basic blocks should be executed. */
+    private boolean blockTranslation;
+    /** Translated basic blocks, indexed by physical page. */
+    private BasicBlock[][] blockCache;
+    /**
+     * Set when the basic block being executed must not continue past the
+     * current instruction.
+     */
+    private boolean abortBlock;
+    /** The maximum number of instructions in a basic block. */
+    private static final int maxBlockLength = 64;
+    /** The virtual page of the last instruction fetched, or -1. */
+    private int lastFetchVPN = -1;
+    /** The physical address of the start of that page. */
+    private int lastFetchBase;
+    /** The virtual page of the last data access, or -1. */
+    private int lastDataVPN = -1;
+    /** The physical address of the start of that page. */
+    private int lastDataBase;
+    /** <tt>true</tt> if that page was written, so it is writable and dirty. */
+    private boolean lastDataWritable;
+    /** Instructions retired in the current batch by <tt>runFast()</tt>. */
+    private int batchRetired;
+    /** The most instructions retired before ticking the interrupt controller. */
+    private static final int maxBatchLength = 1 << 20;
+
+    /** The execution profile, or <tt>null</tt> if not profiling. */
+    private Profiler profiler = null;
+    /** <tt>true</tt> if TLB misses are charged to their address spaces. */
+    private boolean recordingTLBMisses = false;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,6 +1066,9 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+
+	    // the interrupt handler may change the address translation
+	    invalidateLastTranslations();
 	}
     }
 
@@ -584,6 +1087,13 @@ public final class Processor {
 	}
 
 	public void handle() {
+	    invalidateLastTranslations();
+
+	    // a system call completes in the kernel, so count it here
+	    if (cause == exceptionSyscall && profiler != null)
+		profiler.syscall(registers[regPC], registers[regV0],
+				 privilege.stats.totalTicks);
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -626,78 +1136,57 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x"
+				   + Lib.toHexString(registers[regPC])
+				   + ", size=4");
+
+	    // fetch through translate() directly, since decode() needs the
+	    // physical address to find the predecoded instruction
+	    paddr = translate(registers[regPC], 4, false);
+	    value = memory.getInt(paddr);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    Decoded decoded = predecode(paddr, value);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + (decoded.branchOffset<<2);
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,7 +1541,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1552,802 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * Return the predecoded form of the instruction word <i>value</i>, which
+     * was fetched from physical address <i>paddr</i>. Predecoded instructions
+     * are cached per physical page, so an instruction that is executed
+     * repeatedly is only decoded once.
+     *
+     * <p>
+     * The kernel may write physical memory directly through
+     * <tt>getMemory()</tt>, so a cached instruction is only reused if its
+     * instruction word still matches <i>value</i>.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word.
+     * @return	the predecoded instruction.
+     */
+    private Decoded predecode(int paddr, int value) {
+	int ppn = paddr / pageSize;
+
+	Decoded[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new Decoded[pageSize/4];
+	    decodeCache[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+
+	Decoded decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new Decoded(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard all predecoded instructions and translated basic blocks cached
+     * for the specified physical page. Called whenever the contents of the
+     * page are replaced.
+     *
+     * @param	ppn	the physical page whose contents changed.
+     */
+    void invalidateDecodeCache(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodeCache[ppn] = null;
+
+	if (blockTranslation && blockCache[ppn] != null) {
+	    blockCache[ppn] = null;
+	    abortBlock = true;
+	}
+    }
+
+    /**
+     * Return the translated basic block starting at physical address
+     * <i>paddr</i>, translating it first if necessary. As with predecoded
+     * instructions, a cached block is only reused if the instruction words it
+     * was translated from are still in memory.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the basic block.
+     */
+    private BasicBlock lookupBlock(int paddr) {
+	int ppn = paddr / pageSize;
+
+	BasicBlock[] page = blockCache[ppn];
+	if (page == null) {
+	    page = new BasicBlock[pageSize/4];
+	    blockCache[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+
+	BasicBlock block = page[index];
+	if (block == null || !block.matches(paddr)) {
+	    block = new BasicBlock(paddr);
+	    page[index] = block;
+	}
+
+	return block;
+    }
+
+    /**
+     * A straight-line sequence of instructions, ending with a branch and its
+     * delay slot, a syscall, an illegal instruction, or the end of the page.
+     * Each instruction is translated into a <tt>Step</tt> that executes it
+     * without any further decoding.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    int end = Math.min((paddr/pageSize + 1) * pageSize,
+			       paddr + maxBlockLength*4);
+
+	    int length = 0;
+	    boolean delaySlot = false;
+
+	    for (int addr=paddr; addr<end; addr+=4) {
+		Decoded decoded =
+		    predecode(addr, memory.getInt(addr));
+		length++;
+
+		if (delaySlot)
+		    break;
+
+		if (Lib.test(Mips.BRANCH, decoded.flags))
+		    delaySlot = true;
+		else if (decoded.operation == Mips.SYSCALL ||
+			 decoded.operation == Mips.UNIMPL ||
+			 decoded.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    words = new int[length];
+	    steps = new Step[length];
+
+	    for (int i=0; i<length; i++) {
+		words[i] = memory.getInt(paddr + i*4);
+		steps[i] = translateStep(predecode(paddr + i*4, words[i]));
+	    }
+	}
+
+	boolean matches(int paddr) {
+	    for (int i=0; i<words.length; i++) {
+		if (memory.getInt(paddr + i*4) != words[i])
+		    return false;
+	    }
+
+	    return true;
+	}
+
+	int[] words;
+	Step[] steps;
+    }
+
+    /**
+     * Translate a predecoded instruction into a <tt>Step</tt> that executes
+     * it. Each step has exactly the same effect as running the instruction
+     * through <tt>Instruction</tt>, but without any decoding, tracing, or
+     * dispatching on the operation.
+     *
+     * @param	decoded	the instruction to translate.
+     * @return	a step that executes the instruction.
+     */
+    private Step translateStep(Decoded decoded) {
+	switch (decoded.operation) {
+	case Mips.ADD:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(src1() + src2());
+		}
+	    };
+	case Mips.SUB:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(src1() - src2());
+		}
+	    };
+	case Mips.MULT:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    long dst = src1() * src2();
+		    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+		    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+		    retire(dst);
+		}
+	    };
+	case Mips.DIV:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    long src1 = src1(), src2 = src2();
+		    try {
+			registers[regLo] = (int) (src1 / src2);
+			registers[regHi] = (int) (src1 % src2);
+			if (registers[regLo]*src2 + registers[regHi] != src1)
+			    throw new ArithmeticException();
+		    }
+		    catch (ArithmeticException e) {
+			throw new MipsException(exceptionOverflow);
+		    }
+		    retire(0);
+		}
+	    };
+
+	case Mips.SLL:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    long src1 = src1();
+		    retire(src2() << (src1&0x1F));
+		}
+	    };
+	case Mips.SRA:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    long src1 = src1();
+		    retire(src2() >> (src1&0x1F));
+		}
+	    };
+	case Mips.SRL:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    long src1 = src1();
+		    retire(src2() >>> (src1&0x1F));
+		}
+	    };
+
+	case Mips.SLT:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire((src1() < src2()) ? 1 : 0);
+		}
+	    };
+
+	case Mips.AND:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(src1() & src2());
+		}
+	    };
+	case Mips.OR:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(src1() | src2());
+		}
+	    };
+	case Mips.NOR:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(~(src1() | src2()));
+		}
+	    };
+	case Mips.XOR:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(src1() ^ src2());
+		}
+	    };
+	case Mips.LUI:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(imm << 16);
+		}
+	    };
+
+	case Mips.BEQ:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int jtarget = jtarget();
+		    branch(src1() == src2(), jtarget);
+		}
+	    };
+	case Mips.BNE:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int jtarget = jtarget();
+		    branch(src1() != src2(), jtarget);
+		}
+	    };
+	case Mips.BGEZ:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int jtarget = jtarget();
+		    branch(src1() >= 0, jtarget);
+		}
+	    };
+	case Mips.BGTZ:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int jtarget = jtarget();
+		    branch(src1() > 0, jtarget);
+		}
+	    };
+	case Mips.BLEZ:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int jtarget = jtarget();
+		    branch(src1() <= 0, jtarget);
+		}
+	    };
+	case Mips.BLTZ:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int jtarget = jtarget();
+		    branch(src1() < 0, jtarget);
+		}
+	    };
+	case Mips.JUMP:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    branch(true, jtarget());
+		}
+	    };
+
+	case Mips.MFLO:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(registers[regLo]);
+		}
+	    };
+	case Mips.MFHI:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    retire(registers[regHi]);
+		}
+	    };
+	case Mips.MTLO:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    registers[regLo] = (int) src1();
+		    retire(0);
+		}
+	    };
+	case Mips.MTHI:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    registers[regHi] = (int) src1();
+		    retire(0);
+		}
+	    };
+
+	case Mips.SYSCALL:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    throw new MipsException(exceptionSyscall);
+		}
+	    };
+
+	case Mips.LOAD:
+	    if (Lib.test(Mips.UNSIGNED, decoded.flags)) {
+		return new Step(decoded) {
+		    void run() throws MipsException {
+			load(fastReadMem(addr(), size), 0xFFFFFFFF);
+		    }
+		};
+	    }
+	    else {
+		return new Step(decoded) {
+		    void run() throws MipsException {
+			load(Lib.extend(fastReadMem(addr(), size), 0, size*8),
+			     0xFFFFFFFF);
+		    }
+		};
+	    }
+
+	case Mips.LWL:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int addr = addr();
+		    int value = fastReadMem(addr&~0x3, 4);
+
+		    // LWL shifts the input left so the addressed byte is highest
+		    int preserved = (3-(addr&0x3))*8;
+		    load(value << preserved, -1 << preserved);
+		}
+	    };
+
+	case Mips.LWR:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int addr = addr();
+		    int value = fastReadMem(addr&~0x3, 4);
+
+		    // LWR shifts the input right so the addressed byte is lowest
+		    int preserved = (addr&0x3)*8;
+		    load(value >>> preserved, -1 >>> preserved);
+		}
+	    };
+
+	case Mips.STORE:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    fastWriteMem(addr(), size, (int) src2());
+		    retire(0);
+		}
+	    };
+
+	case Mips.SWL:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int addr = addr();
+		    long src2 = src2();
+		    int value = fastReadMem(addr&~0x3, 4);
+
+		    // SWL shifts highest order byte into the addressed position
+		    int preserved = (3-(addr&0x3))*8;
+		    int mask = -1 >>> preserved;
+		    long dst = src2 >>> preserved;
+
+		    fastWriteMem(addr&~0x3, 4,
+				 (int) ((dst & mask) | (value & ~mask)));
+		    retire(0);
+		}
+	    };
+
+	case Mips.SWR:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    int addr = addr();
+		    long src2 = src2();
+		    int value = fastReadMem(addr&~0x3, 4);
+
+		    // SWR shifts the lowest order byte into the addressed position
+		    int preserved = (addr&0x3)*8;
+		    int mask = -1 << preserved;
+		    long dst = src2 << preserved;
+
+		    fastWriteMem(addr&~0x3, 4,
+				 (int) ((dst & mask) | (value & ~mask)));
+		    retire(0);
+		}
+	    };
+
+	case Mips.UNIMPL:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    System.err.println("Warning: encountered unimplemented inst");
+		    throw new MipsException(exceptionIllegalInstruction);
+		}
+	    };
+
+	case Mips.INVALID:
+	    return new Step(decoded) {
+		void run() throws MipsException {
+		    throw new MipsException(exceptionIllegalInstruction);
+		}
+	    };
+
+	default:
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    /**
+     * A single translated instruction. Subclasses implement <tt>run()</tt>
+     * for one operation, using the helpers here to read operands and to
+     * write back results in the same order as <tt>Instruction</tt>: all
+     * operands are read before the previous delayed load completes.
+     */
+    private abstract class Step {
+	Step(Decoded decoded) {
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    sh = decoded.sh;
+	    imm = decoded.imm;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
+	    format = decoded.format;
+	    target = decoded.target;
+	    branchOffset = decoded.branchOffset;
+
+	    src1Shift = Lib.test(Mips.SRC1SH, decoded.flags);
+	    src2Imm = Lib.test(Mips.SRC2IMM, decoded.flags);
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	    overflow = Lib.test(Mips.OVERFLOW, decoded.flags);
+	    link = Lib.test(Mips.LINK, decoded.flags);
+	    writesDst = Lib.test(Mips.DST, decoded.flags) && dstReg != 0;
+	}
+
+	/**
+	 * Execute this instruction and advance the PC.
+	 *
+	 * @exception	MipsException	if the instruction caused an exception.
+	 */
+	abstract void run() throws MipsException;
+
+	final long src1() {
+	    long src1 = src1Shift ? sh : registers[rs];
+	    return unsigned ? (src1 & 0xFFFFFFFFL) : src1;
+	}
+
+	final long src2() {
+	    long src2 = src2Imm ? imm : registers[rt];
+	    return unsigned ? (src2 & 0xFFFFFFFFL) : src2;
+	}
+
+	final int addr() {
+	    return registers[rs] + imm;
+	}
+
+	final int jtarget() {
+	    if (format == Mips.RFMT)
+		return registers[rs];
+	    else if (format == Mips.IFMT)
+		return registers[regNextPC] + (branchOffset<<2);
+	    else
+		return (registers[regNextPC]&0xF0000000) | (target<<2);
+	}
+
+	/**
+	 * Write back the result of a non-branch, non-load instruction.
+	 */
+	final void retire(long dst) throws MipsException {
+	    if (overflow && Lib.test(dst,31) != Lib.test(dst,32))
+		throw new MipsException(exceptionOverflow);
+
+	    finishLoad();
+
+	    if (writesDst)
+		registers[dstReg] = (int) dst;
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Write back the result of a branch or jump.
+	 */
+	final void branch(boolean taken, int jtarget) {
+	    int nextPC = registers[regNextPC]+4;
+
+	    finishLoad();
+
+	    if (writesDst && link)
+		registers[dstReg] = nextPC;
+
+	    advancePC(taken ? jtarget : nextPC);
+	}
+
+	/**
+	 * Schedule the delayed load of a load instruction.
+	 */
+	final void load(int value, int mask) {
+	    delayedLoad(dstReg, value, mask);
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	final int rs, rt, sh, imm, size, dstReg, format, target, branchOffset;
+	final boolean src1Shift, src2Imm, unsigned, overflow, link, writesDst;
+    }
+
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any register.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branches always use the sign-extended immediate
+	    branchOffset = imm;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+
+	int size, dstReg, branchOffset;
+
+	/** The translated instruction, built on first use by
+	 * <tt>runStep()</tt>. */
+	Step step = null;
+    }
+
+    /**
+     * Instruction counts for each PC, each operation and each system call,
+     * and the time between system calls, kept in plain arrays so that
+     * profiling is cheap enough to leave on for whole runs.
+     */
+    private static class Profiler {
+	Profiler() {
+	    operationNames[Mips.INVALID] = "invalid";
+	    operationNames[Mips.UNIMPL] = "unimplemented";
+	    operationNames[Mips.ADD] = "add";
+	    operationNames[Mips.SUB] = "sub";
+	    operationNames[Mips.MULT] = "mult";
+	    operationNames[Mips.DIV] = "div";
+	    operationNames[Mips.SLL] = "sll";
+	    operationNames[Mips.SRA] = "sra";
+	    operationNames[Mips.SRL] = "srl";
+	    operationNames[Mips.SLT] = "slt";
+	    operationNames[Mips.AND] = "and";
+	    operationNames[Mips.OR] = "or";
+	    operationNames[Mips.NOR] = "nor";
+	    operationNames[Mips.XOR] = "xor";
+	    operationNames[Mips.LUI] = "lui";
+	    operationNames[Mips.MFLO] = "mflo";
+	    operationNames[Mips.MFHI] = "mfhi";
+	    operationNames[Mips.MTLO] = "mtlo";
+	    operationNames[Mips.MTHI] = "mthi";
+	    operationNames[Mips.JUMP] = "jump";
+	    operationNames[Mips.BEQ] = "beq";
+	    operationNames[Mips.BNE] = "bne";
+	    operationNames[Mips.BLEZ] = "blez";
+	    operationNames[Mips.BGTZ] = "bgtz";
+	    operationNames[Mips.BLTZ] = "bltz";
+	    operationNames[Mips.BGEZ] = "bgez";
+	    operationNames[Mips.SYSCALL] = "syscall";
+	    operationNames[Mips.LOAD] = "load";
+	    operationNames[Mips.LWL] = "lwl";
+	    operationNames[Mips.LWR] = "lwr";
+	    operationNames[Mips.STORE] = "store";
+	    operationNames[Mips.SWL] = "swl";
+	    operationNames[Mips.SWR] = "swr";
+	}
+
+	void instruction(int pc, int operation) {
+	    int index = pc >>> 2;
+
+	    if (index >= pcCounts.length && !growPCCounts(index))
+		otherPCs++;
+	    else
+		pcCounts[index]++;
+
+	    operationCounts[operation]++;
+	}
+
+	void syscall(int pc, int number, long time) {
+	    instruction(pc, Mips.SYSCALL);
+
+	    if (number >= 0 && number < syscallCounts.length)
+		syscallCounts[number]++;
+	    else
+		otherSyscalls++;
+
+	    long interval = time - lastSyscallTime;
+	    lastSyscallTime = time;
+
+	    // bucket i holds intervals of less than 2^i ticks
+	    int bucket = 64 - Long.numberOfLeadingZeros(interval);
+	    intervalCounts[Math.min(bucket, intervalCounts.length-1)]++;
+	    numIntervals++;
+	    totalInterval += interval;
+	    maxInterval = Math.max(maxInterval, interval);
+	}
+
+	private boolean growPCCounts(int index) {
+	    if (index >= maxPCs)
+		return false;
+
+	    int length = pcCounts.length;
+	    while (length <= index)
+		length *= 2;
+
+	    int[] counts = new int[Math.min(length, maxPCs)];
+	    System.arraycopy(pcCounts, 0, counts, 0, pcCounts.length);
+	    pcCounts = counts;
+	    return true;
+	}
+
+	void print() {
+	    long total = otherPCs;
+	    for (int i=0; i<pcCounts.length; i++)
+		total += pcCounts[i];
+
+	    System.out.println("Profile: instructions " + total
+			       + ", syscalls " + numIntervals);
+	    if (total == 0)
+		return;
+
+	    System.out.println("Hot spots:");
+	    long[] hot = sortCounts(pcCounts);
+	    for (int i=0; i<hot.length && i<maxHotSpots; i++) {
+		int pc = ((int) hot[i]) << 2;
+		int count = (int) (hot[i] >>> 32);
+		System.out.println("  0x" + Lib.toHexString(pc) + ": " + count
+				   + percent(count, total));
+	    }
+	    if (otherPCs > 0)
+		System.out.println("  (high PCs): " + otherPCs
+				   + percent(otherPCs, total));
+
+	    System.out.println("Operations:");
+	    long[] operations = sortCounts(operationCounts);
+	    for (int i=0; i<operations.length; i++) {
+		int count = (int) (operations[i] >>> 32);
+		System.out.println("  " + operationNames[(int) operations[i]]
+				   + ": " + count + percent(count, total));
+	    }
+
+	    if (numIntervals == 0)
+		return;
+
+	    System.out.println("Syscalls:");
+	    long[] syscalls = sortCounts(syscallCounts);
+	    for (int i=0; i<syscalls.length; i++)
+		System.out.println("  " + (int) syscalls[i] + ": "
+				   + (int) (syscalls[i] >>> 32));
+	    if (otherSyscalls > 0)
+		System.out.println("  (other): " + otherSyscalls);
+
+	    System.out.println("Ticks between syscalls: mean "
+			       + (totalInterval / numIntervals)
+			       + ", max " + maxInterval);
+	    for (int i=0; i<intervalCounts.length; i++) {
+		if (intervalCounts[i] > 0)
+		    System.out.println("  < 2^" + i + ": " + intervalCounts[i]);
+	    }
+	}
+
+	/**
+	 * Return the non-zero counts, each packed with its index into the low
+	 * 32 bits of a long, in decreasing order of count.
+	 */
+	private static long[] sortCounts(int[] counts) {
+	    int n = 0;
+	    for (int i=0; i<counts.length; i++) {
+		if (counts[i] != 0)
+		    n++;
+	    }
+
+	    long[] sorted = new long[n];
+	    n = 0;
+	    for (int i=0; i<counts.length; i++) {
+		// invert the index so that ties list the lowest index first
+		if (counts[i] != 0)
+		    sorted[n++] = ((long) counts[i] << 32) | (~i & 0xFFFFFFFFL);
+	    }
+	    Arrays.sort(sorted);
+
+	    // reverse, and restore the indices
+	    for (int i=0; i<n/2; i++) {
+		long entry = sorted[n-1-i];
+		sorted[n-1-i] = sorted[i];
+		sorted[i] = entry;
+	    }
+	    for (int i=0; i<n; i++)
+		sorted[i] = (sorted[i] & 0xFFFFFFFF00000000L) |
+		    (~sorted[i] & 0xFFFFFFFFL);
+
+	    return sorted;
+	}
+
+	private static String percent(long count, long total) {
+	    return " (" + (count * 1000 / total) / 10.0 + "%)";
+	}
+
+	private int[] pcCounts = new int[0x1000];
+	private long otherPCs = 0;
+	private int[] operationCounts = new int[Mips.MAX+1];
+	private int[] syscallCounts = new int[64];
+	private int otherSyscalls = 0;
+	private String[] operationNames = new String[Mips.MAX+1];
+
+	private long lastSyscallTime = 0;
+	private int[] intervalCounts = new int[40];
+	private int numIntervals = 0;
+	private long totalInterval = 0;
+	private long maxInterval = 0;
+
+	/** Instructions above this word address are counted together. */
+	private static final int maxPCs = 1 << 22;
+	private static final int maxHotSpots = 20;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -27,10 +27,125 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (tlbMissesByPage != null)
+	    printTLBMisses();
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
 
+    private void printTLBMisses() {
+	for (int addressSpace=0; addressSpace<tlbMisses.length;
+	     addressSpace++) {
+	    if (tlbMisses[addressSpace] == 0)
+		continue;
+
+	    int[] byPage = tlbMissesByPage[addressSpace];
+	    int worstPage = 0, numPages = 0;
+	    for (int vpn=0; vpn<byPage.length; vpn++) {
+		if (byPage[vpn] == 0)
+		    continue;
+
+		numPages++;
+		if (byPage[vpn] > byPage[worstPage])
+		    worstPage = vpn;
+	    }
+
+	    System.out.println("  address space " + addressSpace
+			       + ": TLB misses " + tlbMisses[addressSpace]
+			       + " on " + numPages + " pages, most on page "
+			       + worstPage + " (" + byPage[worstPage] + ")");
+	}
+    }
+
+    /**
+     * Charge a TLB miss on the specified virtual page to the specified address
+     * space. Called by the processor, which also increments
+     * <tt>numTLBMisses</tt>, when <tt>Processor.recordTLBMisses</tt> is set.
+     * The counts are kept in arrays indexed by address space and page, which
+     * only grow when a larger address space or page is first seen.
+     *
+     * @param	addressSpace	the address space that missed, as set by
+     *				<tt>Processor.setAddressSpace()</tt>.
+     * @param	vpn		the virtual page that missed.
+     */
+    public void recordTLBMiss(int addressSpace, int vpn) {
+	Lib.assertTrue(addressSpace >= 0 && vpn >= 0);
+
+	if (tlbMissesByPage == null || addressSpace >= tlbMissesByPage.length)
+	    growAddressSpaces(addressSpace);
+
+	int[] byPage = tlbMissesByPage[addressSpace];
+	if (vpn >= byPage.length)
+	    byPage = growPages(addressSpace, vpn);
+
+	tlbMisses[addressSpace]++;
+	byPage[vpn]++;
+    }
+
+    private void growAddressSpaces(int addressSpace) {
+	int length = (tlbMissesByPage == null) ? 8 : tlbMissesByPage.length;
+	while (length <= addressSpace)
+	    length *= 2;
+
+	int[] misses = new int[length];
+	int[][] byPage = new int[length][];
+	if (tlbMissesByPage != null) {
+	    System.arraycopy(tlbMisses, 0, misses, 0, tlbMisses.length);
+	    System.arraycopy(tlbMissesByPage, 0, byPage, 0,
+			     tlbMissesByPage.length);
+	}
+	for (int i=0; i<length; i++) {
+	    if (byPage[i] == null)
+		byPage[i] = new int[0];
+	}
+
+	tlbMisses = misses;
+	tlbMissesByPage = byPage;
+    }
+
+    private int[] growPages(int addressSpace, int vpn) {
+	int[] old = tlbMissesByPage[addressSpace];
+	int length = Math.max(old.length, 16);
+	while (length <= vpn)
+	    length *= 2;
+
+	int[] byPage = new int[length];
+	System.arraycopy(old, 0, byPage, 0, old.length);
+
+	tlbMissesByPage[addressSpace] = byPage;
+	return byPage;
+    }
+
+    /**
+     * Return the number of TLB misses charged to the specified address space.
+     *
+     * @param	addressSpace	the address space.
+     * @return	the number of TLB misses on all of its pages.
+     */
+    public int getTLBMisses(int addressSpace) {
+	if (tlbMisses == null || addressSpace < 0 ||
+	    addressSpace >= tlbMisses.length)
+	    return 0;
+
+	return tlbMisses[addressSpace];
+    }
+
+    /**
+     * Return the number of TLB misses on the specified virtual page of the
+     * specified address space.
+     *
+     * @param	addressSpace	the address space.
+     * @param	vpn		the virtual page.
+     * @return	the number of TLB misses on that page.
+     */
+    public int getTLBMisses(int addressSpace, int vpn) {
+	if (getTLBMisses(addressSpace) == 0 || vpn < 0 ||
+	    vpn >= tlbMissesByPage[addressSpace].length)
+	    return 0;
+
+	return tlbMissesByPage[addressSpace][vpn];
+    }
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -57,6 +172,13 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * TLB misses charged to each address space, or <tt>null</tt> if none
+     * have been recorded.
+     */
+    private int[] tlbMisses = null;
+    /** TLB misses on each page, indexed by address space and page number. */
+    private int[][] tlbMissesByPage = null;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
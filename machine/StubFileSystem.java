@@ -8,6 +8,8 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -77,6 +79,7 @@ public class StubFileSystem implements FileSystem {
 	    super(StubFileSystem.this, name);
 
 	    final File f = new File(directory, name);
+	    hostFile = f;
 
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
@@ -137,6 +140,57 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	public int read(int pos, ByteBuffer[] bufs) {
+	    if (!open)
+		return -1;
+
+	    try {
+		delay();
+
+		FileChannel channel = file.getChannel();
+		channel.position(pos);
+
+		int amount = 0;
+		for (int i=0; i<bufs.length; i++) {
+		    while (bufs[i].hasRemaining()) {
+			int count = channel.read(bufs[i]);
+			if (count <= 0)
+			    return amount;
+
+			amount += count;
+		    }
+		}
+
+		return amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public int write(int pos, ByteBuffer[] bufs) {
+	    if (!open)
+		return -1;
+
+	    try {
+		delay();
+
+		FileChannel channel = file.getChannel();
+		channel.position(pos);
+
+		int amount = 0;
+		for (int i=0; i<bufs.length; i++) {
+		    while (bufs[i].hasRemaining())
+			amount += channel.write(bufs[i]);
+		}
+
+		return amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
 	public int length() {
 	    try {
 		return (int) file.length();
@@ -146,6 +200,16 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	public long lastModified() {
+	    final long[] time = new long[1];
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { time[0] = hostFile.lastModified(); }
+	    });
+
+	    return time[0];
+	}
+
 	public void close() {
 	    if (open) {
 		open = false;
@@ -159,6 +223,7 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	private File hostFile;
 	private RandomAccessFile file = null;
 	private boolean open = false;
     }
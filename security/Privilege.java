@@ -158,6 +158,30 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by <i>count</i> ticks. This has the same
+	 * effect as calling <tt>tick(inKernelMode)</tt> <i>count</i> times,
+	 * and may only be used when no pending interrupt becomes due before
+	 * the last of these ticks.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance by.
+	 *
+	 * @see	#ticksUntilNextInterrupt
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Return the number of ticks of simulated time that must pass before the
+	 * next pending interrupt is due.
+	 *
+	 * @return	the number of ticks until the next pending interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 */
+	public long ticksUntilNextInterrupt();
     }
 
     /**
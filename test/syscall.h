@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -90,6 +91,17 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a child process that is a copy of the current process. The child
+ * has a new unique process ID, and continues from the same point as the
+ * parent, with a copy of its memory and open files. The memory is not
+ * actually copied until one of the processes writes to it.
+ *
+ * fork() returns the child process's process ID to the parent, which can be
+ * passed to join(), and returns 0 to the child. On error, returns -1.
+ */
+int fork();
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -1,17 +1,24 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Time is divided
+ * into units of <tt>2^unitBits</tt> ticks. Level 0 of the wheel has a slot for
+ * each of the next <tt>numSlots</tt> units, and each slot of level <i>n</i>
+ * covers <tt>numSlots</tt> slots of level <i>n-1</i>. A sleeper is put in a
+ * slot of the lowest level whose range reaches its wake time, and is moved
+ * down when the wheel reaches the start of its slot. Adding, cancelling and
+ * waking a sleeper therefore take constant time, however many threads are
+ * sleeping, and a timer interrupt only looks at the slots that have come due
+ * since the last one. While no thread is sleeping, the wheel is not advanced
+ * at all.
  */
 public class Alarm {
-
-    //This is the queue for holding threads that are waiting.
-    private PriorityQueue<AlarmThreadWaiter> waitUntilQueue = new PriorityQueue<AlarmThreadWaiter>();
-
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
      * alarm's callback.
@@ -20,6 +27,11 @@ public class Alarm {
      * <b>Note</b>: Nachos will not function correctly with more than one alarm.
      */
     public Alarm() {
+        for (int i = 0; i < numLevels; i++)
+            wheel[i] = new Waiter[numSlots];
+
+        wheelTime = Machine.timer().getTime() >> unitBits;
+
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() {
                 timerInterrupt();
@@ -29,20 +41,14 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current thread
-     * to yield, forcing a context switch if there is another thread that should be
-     * run.
+     * periodically (approximately every 500 clock ticks). Wakes any threads
+     * that are due, then causes the current thread to yield, forcing a context
+     * switch if there is another thread that should be run.
      */
     public void timerInterrupt() {
-        long currentTime = Machine.timer().getTime();
-        AlarmThreadWaiter nextWaiter = waitUntilQueue.peek();
-
-        while ((nextWaiter != null) && (nextWaiter.getWakeTime() <= currentTime)) {
-            nextWaiter.getKThread().ready();
-            waitUntilQueue.remove();
-            nextWaiter = waitUntilQueue.peek();
-        }
+        expire(Machine.timer().getTime());
 
+        ThreadedKernel.scheduler.timerInterrupt();
         KThread.yield();
     }
 
@@ -54,6 +60,9 @@ public class Alarm {
      * <p>
      * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
      *
+     * <p>
+     * The thread is woken earlier if another thread calls <tt>cancel()</tt>.
+     *
      * @param x the minimum number of clock ticks to wait.
      *
      * @see nachos.machine.Timer#getTime()
@@ -61,67 +70,202 @@ public class Alarm {
     public void waitUntil(long x) {
         boolean intStatus = Machine.interrupt().disable();
 
-        long wakeTime = Machine.timer().getTime() + x;
-        AlarmThreadWaiter wrapper = new AlarmThreadWaiter(KThread.currentThread(), wakeTime);
-        waitUntilQueue.add(wrapper);
+        KThread thread = KThread.currentThread();
+        Lib.assertTrue(thread.alarmWaiter == null);
+
+        Waiter waiter = freeWaiters;
+        if (waiter != null)
+            freeWaiters = waiter.next;
+        else
+            waiter = new Waiter();
+
+        long now = Machine.timer().getTime();
+        if (numSleepers == 0)
+            wheelTime = now >> unitBits;
+
+        waiter.thread = thread;
+        waiter.wakeTime = now + Math.max(x, 0);
+        insert(waiter);
+        numSleepers++;
+
+        thread.alarmWaiter = waiter;
         KThread.sleep();
+        thread.alarmWaiter = null;
+
+        waiter.thread = null;
+        waiter.next = freeWaiters;
+        freeWaiters = waiter;
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wake a thread sleeping in <tt>waitUntil()</tt> before its time is up.
+     *
+     * @param thread the thread to wake.
+     * @return <tt>true</tt> if the thread was sleeping in <tt>waitUntil()</tt>.
+     */
+    public boolean cancel(KThread thread) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        Waiter waiter = thread.alarmWaiter;
+        boolean sleeping = (waiter != null && waiter.level != -1);
+        if (sleeping)
+            wake(waiter);
+
         Machine.interrupt().restore(intStatus);
+        return sleeping;
     }
 
     /**
-     * The alarm class create a new AlarmThreadWaiter object for each thread that
-     * wants to wait.
+     * Wake every sleeper whose time is up, advancing the wheel a unit at a time
+     * up to the current unit and moving sleepers down a level whenever the
+     * wheel reaches the start of their slot.
      */
-    public class AlarmThreadWaiter implements Comparable<AlarmThreadWaiter> {
-
-        // this is the KThread thats wants to wait.
-        private KThread myThread;
-        // This is the time at which the Kthread wants to wake up at.
-        private long wakeTime;
-
-        /**
-         * Constructor for the AlarmThreadWaiter object.
-         * 
-         * @param thread The Thread that wants to wait.
-         * @param time   The time at which the thread wants to wake up at.
-         */
-        public AlarmThreadWaiter(KThread thread, long time) {
-            myThread = thread;
-            wakeTime = time;
+    private void expire(long now) {
+        long nowUnit = now >> unitBits;
+
+        while (numSleepers > 0 && wheelTime < nowUnit) {
+            expireSlot(now);
+            wheelTime++;
+            cascade();
         }
 
-        public int compareTo(AlarmThreadWaiter waiter) {
-            long waiterTime = waiter.getWakeTime();
+        if (numSleepers == 0) {
+            wheelTime = nowUnit;
+            return;
+        }
 
-            if (this.wakeTime > waiterTime) {
-                return 1;
-            } else if (this.wakeTime == waiterTime) {
-                return 0;
-            } else {
-                return -1;
+        // the current unit may hold sleepers that are not due yet
+        expireSlot(now);
+    }
+
+    /**
+     * Wake the sleepers in the level 0 slot of the current unit whose time is
+     * up.
+     */
+    private void expireSlot(long now) {
+        int slot = (int) (wheelTime & slotMask);
+
+        Waiter waiter = wheel[0][slot];
+        while (waiter != null) {
+            Waiter next = waiter.next;
+
+            if (waiter.wakeTime <= now) {
+                wake(waiter);
+            } else if ((waiter.wakeTime >> unitBits) > wheelTime) {
+                // placed at the far edge of the wheel; not due for a while
+                unlink(waiter);
+                insert(waiter);
             }
-        }
 
-        /**
-         * Get the value of the wakeTime of the AlarmThreadWaiteer object.
-         * 
-         * @return the time at which the thread should wake at as a long.
-         */
-        public long getWakeTime() {
-            return wakeTime;
+            waiter = next;
         }
+    }
 
-        /**
-         * Get the thread of the AlarmThreadWaiteer object.
-         * 
-         * @return the thread as a KThread.
-         */
-        public KThread getKThread() {
-            return myThread;
+    /**
+     * If the wheel has reached the start of a slot on any higher level, move
+     * the sleepers in that slot down, starting at the highest level so that
+     * each sleeper falls as far as it needs to.
+     */
+    private void cascade() {
+        int level = 0;
+        while (level < numLevels - 1
+               && (wheelTime & ((1L << (slotBits * (level + 1))) - 1)) == 0)
+            level++;
+
+        for (; level > 0; level--) {
+            int slot = (int) ((wheelTime >> (slotBits * level)) & slotMask);
+
+            Waiter waiter = wheel[level][slot];
+            wheel[level][slot] = null;
+
+            while (waiter != null) {
+                Waiter next = waiter.next;
+                insert(waiter);
+                waiter = next;
+            }
         }
+    }
+
+    /**
+     * Put a sleeper in the slot of the lowest level whose range reaches its
+     * wake time. A wake time beyond the range of the whole wheel is placed at
+     * its far edge, and placed again when the wheel gets there.
+     */
+    private void insert(Waiter waiter) {
+        long unit = Math.max(waiter.wakeTime >> unitBits, wheelTime);
+        long delta = unit - wheelTime;
+
+        int level = 0;
+        while (level < numLevels - 1 && delta >= (1L << (slotBits * (level + 1))))
+            level++;
+
+        long range = 1L << (slotBits * numLevels);
+        if (delta >= range)
+            unit = wheelTime + range - 1;
+
+        int slot = (int) ((unit >> (slotBits * level)) & slotMask);
+
+        waiter.level = level;
+        waiter.slot = slot;
+        waiter.prev = null;
+        waiter.next = wheel[level][slot];
+        if (waiter.next != null)
+            waiter.next.prev = waiter;
+        wheel[level][slot] = waiter;
+    }
+
+    private void unlink(Waiter waiter) {
+        if (waiter.prev == null)
+            wheel[waiter.level][waiter.slot] = waiter.next;
+        else
+            waiter.prev.next = waiter.next;
+
+        if (waiter.next != null)
+            waiter.next.prev = waiter.prev;
+
+        waiter.prev = waiter.next = null;
+        waiter.level = -1;
+    }
 
+    private void wake(Waiter waiter) {
+        unlink(waiter);
+        numSleepers--;
+
+        waiter.thread.ready();
+    }
+
+    /**
+     * A sleeping thread's place in the wheel. Waiters are reused once their
+     * thread has woken, so sleeping does not allocate memory.
+     */
+    static class Waiter {
+        /** The sleeping thread. */
+        KThread thread;
+        /** The first tick at which the thread may be woken. */
+        long wakeTime;
+        /** The level and slot the waiter is in, or -1 if it is in none. */
+        int level = -1;
+        int slot;
+        /** The neighbours of the waiter in its slot, or in the free list. */
+        Waiter prev, next;
     }
 
+    private static final int unitBits = 6;
+    private static final int slotBits = 6;
+    private static final int numSlots = 1 << slotBits;
+    private static final long slotMask = numSlots - 1;
+    private static final int numLevels = 6;
+
+    /** The sleepers in each slot of each level. */
+    private Waiter[][] wheel = new Waiter[numLevels][];
+    /** The unit the wheel has reached. Earlier units have all been expired. */
+    private long wheelTime;
+    private int numSleepers = 0;
+    /** Waiters not in use. */
+    private Waiter freeWaiters = null;
+
     /**
      * Object used in test to wait until the tests are complete to continue.
      */
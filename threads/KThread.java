@@ -460,6 +460,12 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The place of this thread in the alarm's wheel while it is sleeping in
+     * <tt>Alarm.waitUntil()</tt>.
+     */
+    Alarm.Waiter alarmWaiter = null;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
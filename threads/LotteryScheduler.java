@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -42,7 +43,374 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long effective = getLotteryState(thread).effectiveTickets;
+		       
+	return (int) Math.min(effective, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses threads by lottery.
+     *
+     * <p>
+     * Each waiting thread occupies a slot of a Fenwick tree over the ticket
+     * counts of the slots, so a ticket can be drawn, and a thread's tickets
+     * changed, in time logarithmic in the number of waiters. If the queue
+     * transfers tickets, the sum of its waiters' tickets is added to its
+     * owner's, and the owner is told the difference whenever that changes.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(next);
+	    next.acquire(this);
+
+	    return next.thread;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, without removing the
+	 * winner.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no thread is
+	 *		waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket;
+	    if (totalTickets <= Integer.MAX_VALUE)
+		ticket = Lib.random((int) totalTickets);
+	    else
+		ticket = Math.min((long) (Lib.random() * totalTickets),
+				  totalTickets-1);
+
+	    // find the first slot whose prefix sum exceeds the ticket
+	    int index = 0;
+	    for (int bit=slots.length; bit>0; bit>>=1) {
+		if (index+bit <= slots.length && tree[index+bit] <= ticket) {
+		    index += bit;
+		    ticket -= tree[index];
+		}
+	    }
+
+	    Lib.assertTrue(slots[index] != null);
+	    return slots[index];
+	}
+	
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<slots.length; i++) {
+		if (slots[i] != null)
+		    System.out.print(" " + slots[i].thread + "("
+				     + slots[i].queuedTickets + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Give a waiting thread a slot in the tree.
+	 */
+	void add(LotteryState state) {
+	    if (size == slots.length)
+		grow();
+
+	    int slot = freeSlots[slots.length - size - 1];
+	    size++;
+
+	    slots[slot] = state;
+	    state.slot = slot;
+	    state.queuedTickets = 0;
+
+	    changeTickets(state, state.effectiveTickets);
+	}
+
+	/**
+	 * Remove a waiting thread and free its slot.
+	 */
+	void remove(LotteryState state) {
+	    changeTickets(state, -state.queuedTickets);
+
+	    slots[state.slot] = null;
+	    size--;
+	    freeSlots[slots.length - size - 1] = state.slot;
+	    state.slot = -1;
+	}
+
+	/**
+	 * Update the tickets counted for a waiting thread whose effective
+	 * tickets have changed.
+	 */
+	void reposition(LotteryState state) {
+	    changeTickets(state, state.effectiveTickets - state.queuedTickets);
+	}
+
+	/**
+	 * Make a thread the owner of this queue, or leave it without an owner
+	 * if <i>state</i> is <tt>null</tt>, moving any donation with it.
+	 */
+	void setOwner(LotteryState state) {
+	    if (transferPriority && owner != null)
+		owner.changeDonation(-totalTickets);
+
+	    owner = state;
+
+	    if (transferPriority && owner != null)
+		owner.changeDonation(totalTickets);
+	}
+
+	private void changeTickets(LotteryState state, long delta) {
+	    state.queuedTickets += delta;
+	    totalTickets += delta;
+
+	    for (int i=state.slot+1; i<=slots.length; i+=i&-i)
+		tree[i] += delta;
+
+	    if (delta != 0 && transferPriority && owner != null)
+		owner.changeDonation(delta);
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree in linear time.
+	 */
+	private void grow() {
+	    int capacity = slots.length*2;
+
+	    slots = Arrays.copyOf(slots, capacity);
+	    tree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		if (slots[i-1] != null)
+		    tree[i] += slots[i-1].queuedTickets;
+
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+
+	    freeSlots = new int[capacity];
+	    for (int i=0; i<capacity-size; i++)
+		freeSlots[i] = capacity-1-i;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, if any. */
+	private LotteryState owner = null;
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private LotteryState[] slots = new LotteryState[initialSlots];
+	/** The Fenwick tree over the tickets of each slot, indexed from 1. */
+	private long[] tree = new long[initialSlots+1];
+	/** The free slots, as a stack of <tt>slots.length - size</tt>. */
+	private int[] freeSlots = initialFreeSlots();
+	private int size = 0;
+	private long totalTickets = 0;
+    }
+
+    private static int[] initialFreeSlots() {
+	int[] free = new int[initialSlots];
+	for (int i=0; i<initialSlots; i++)
+	    free[i] = initialSlots-1-i;
+
+	return free;
+    }
+
+    private static final int initialSlots = 8;
+
+    /**
+     * The scheduling state of a thread. This should include the thread's
+     * tickets, its effective tickets, any objects it owns, and the queue
+     * it's waiting for, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	    
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    changeEffectiveTickets(tickets - this.tickets);
+	    this.tickets = tickets;
+	}
+
+	/**
+	 * Called when the tickets donated by a queue owned by the associated
+	 * thread change.
+	 *
+	 * @param	delta	the change in the donated tickets.
+	 */
+	void changeDonation(long delta) {
+	    changeEffectiveTickets(delta);
+	}
+
+	/**
+	 * Add to the effective tickets. If the thread is waiting, the queue
+	 * it waits on is updated, which passes the change on to that queue's
+	 * owner in turn.
+	 */
+	private void changeEffectiveTickets(long delta) {
+	    if (delta == 0)
+		return;
+
+	    effectiveTickets += delta;
+
+	    if (waitQueue != null)
+		waitQueue.reposition(this);
+	}
+
+	/**
+	 * Called when the associated thread begins waiting on a queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now the owner of.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (this.waitQueue == waitQueue)
+		this.waitQueue = null;
+
+	    waitQueue.setOwner(this);
+	}	
+
+	/** The thread with which this object is associated. */	   
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = 0;
+	/** The tickets of the associated thread, including donations. */
+	protected long effectiveTickets = 0;
+
+	/** The queue the associated thread is waiting on, if any. */
+	private LotteryQueue waitQueue = null;
+	/** The slot of the associated thread in <tt>waitQueue</tt>. */
+	private int slot = -1;
+	/** The tickets counted for the thread in <tt>waitQueue</tt>. */
+	private long queuedTickets;
     }
 }
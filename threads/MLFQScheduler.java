@@ -0,0 +1,273 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A multilevel feedback queue scheduler. Threads are kept in one FIFO list
+ * per level, and the next thread is always the first thread of the highest
+ * non-empty level, level 0 being the highest.
+ *
+ * <p>
+ * A thread's level is decided by how it uses the processor, measured in timer
+ * interrupts. A thread running at level <i>n</i> has a quantum of
+ * <tt>quantum</tt> &lt;&lt; <i>n</i> interrupts. If the timer interrupts it
+ * before the quantum is used up, it goes back to the front of its level, so
+ * it keeps the processor unless a higher-level thread is waiting. Once the
+ * quantum is used up, the thread moves down a level. A thread that blocks
+ * keeps its level and what is left of its quantum. Only a thread that was
+ * waiting for a device, such as the console, moves up a level, with a new
+ * quantum, when it is woken, so interactive threads stay ahead of
+ * processor-bound ones without a thread gaining a level each time it waits
+ * for a lock.
+ *
+ * <p>
+ * Every <tt>boostInterval</tt> ticks, all threads are moved back to level 0,
+ * so that processor-bound threads are not starved.
+ *
+ * <p>
+ * The scheduler is configured with <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt> and <tt>MLFQScheduler.boostInterval</tt>.
+ * Priority is not transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  100000);
+
+	Lib.assertTrue(numLevels > 0 && numLevels < 31);
+	Lib.assertTrue(quantum > 0 && boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	ignored. MLFQ schedulers do not
+     *					transfer priority.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, 0 being the highest.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the current thread for one timer interrupt, moving it down a
+     * level if its quantum is used up, and move every thread back to level 0
+     * if it is time to.
+     */
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time >= nextBoost) {
+	    Lib.debug(dbgMLFQ, "Moving all threads to level 0");
+
+	    epoch++;
+	    nextBoost = time + boostInterval;
+	}
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	int level = state.getLevel();
+
+	if (++state.used >= (quantum << level)) {
+	    if (level < numLevels-1)
+		state.level = level+1;
+	    state.used = 0;
+	    preempted = null;
+	}
+	else {
+	    preempted = state;
+	}
+    }
+
+    /**
+     * Note that the current thread is about to block waiting for a device,
+     * so it moves up a level when it is woken.
+     */
+    public void waitingForIO() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getThreadState(KThread.currentThread()).waitingForIO = true;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private class MLFQueue extends ThreadQueue {
+	MLFQueue() {
+	    levels = new ArrayList<LinkedList<KThread>>(numLevels);
+	    for (int i=0; i<numLevels; i++)
+		levels.add(new LinkedList<KThread>());
+	}
+
+	/**
+	 * Add a thread to the end of the list for its level. A thread that
+	 * was preempted with part of its quantum left goes to the front
+	 * instead, and a thread woken from waiting for a device moves up a
+	 * level first.
+	 *
+	 * @param	thread	the thread to add to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boost();
+
+	    ThreadState state = getThreadState(thread);
+	    int level = state.getLevel();
+
+	    if (state == preempted) {
+		preempted = null;
+		levels.get(level).addFirst(thread);
+		return;
+	    }
+
+	    boolean woken = state.waitingForIO &&
+		thread != KThread.currentThread();
+	    state.waitingForIO = false;
+
+	    if (woken && level > 0) {
+		state.level = --level;
+		state.used = 0;
+	    }
+
+	    levels.get(level).add(thread);
+	}
+
+	/**
+	 * Remove the first thread of the highest non-empty level.
+	 *
+	 * @return	the thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boost();
+
+	    for (int i=0; i<numLevels; i++) {
+		if (!levels.get(i).isEmpty())
+		    return levels.get(i).removeFirst();
+	    }
+
+	    return null;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Print out the contents of the queue.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		for (KThread thread : levels.get(i))
+		    System.out.print(thread + "(" + i + ") ");
+	    }
+	}
+
+	/**
+	 * If all threads have been moved to level 0 since this queue was last
+	 * used, move the threads waiting here too.
+	 */
+	private void boost() {
+	    if (queueEpoch == epoch)
+		return;
+
+	    queueEpoch = epoch;
+
+	    for (int i=1; i<numLevels; i++) {
+		levels.get(0).addAll(levels.get(i));
+		levels.get(i).clear();
+	    }
+	}
+
+	private ArrayList<LinkedList<KThread>> levels;
+	private int queueEpoch = epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how much of its quantum
+     * it has used, and whether it is waiting for a device.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Return the level of the associated thread, moving it to level 0 if
+	 * all threads have been moved there since it was last checked.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	int getLevel() {
+	    if (stateEpoch != epoch) {
+		stateEpoch = epoch;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/** The level of the associated thread. */
+	int level = 0;
+	/** The timer interrupts used at this level. */
+	int used = 0;
+	/** <tt>true</tt> if the thread blocked waiting for a device. */
+	boolean waitingForIO = false;
+	private int stateEpoch = epoch;
+    }
+
+    private int numLevels;
+    /** The quantum at level 0, in timer interrupts. */
+    private int quantum;
+    /** The number of ticks between moving all threads to level 0. */
+    private long boostInterval;
+    private long nextBoost = 0;
+    /** Incremented each time all threads are moved to level 0. */
+    private int epoch = 0;
+
+    /**
+     * The thread the last timer interrupt preempted before its quantum was
+     * used up, if it has not been put back in a queue yet.
+     */
+    private ThreadState preempted = null;
+
+    private static final char dbgMLFQ = 'q';
+}
@@ -124,6 +124,14 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one heap per priority level, indexed by
+     * their effective priority and ordered by the time they started waiting,
+     * with a bit mask of the non-empty levels, so the highest-priority waiter
+     * is found without scanning the waiters.
+     * If the queue transfers priority, the priority of its highest waiter is
+     * donated to its owner, and the owner is told whenever that changes.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +150,17 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(next);
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +171,178 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    int top = getTopPriority();
+
+	    return (top == -1) ? null : heaps[top][0];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int p=priorityMaximum; p>=priorityMinimum; p--) {
+		for (int i=0; i<sizes[p]; i++)
+		    System.out.print(" " + heaps[p][i].thread + "(" + p + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Return the highest effective priority of any waiting thread.
+	 *
+	 * @return	the highest priority, or -1 if no thread is waiting.
+	 */
+	protected int getTopPriority() {
+	    if (occupied == 0)
+		return -1;
+
+	    return 31 - Integer.numberOfLeadingZeros(occupied);
+	}
+
+	/**
+	 * Add a thread to the list for its effective priority.
+	 */
+	void add(ThreadState state) {
+	    int top = getTopPriority();
+
+	    link(state);
+	    donationChanged(top);
+	}
+
+	/**
+	 * Remove a waiting thread.
+	 */
+	void remove(ThreadState state) {
+	    int top = getTopPriority();
+
+	    unlink(state);
+	    donationChanged(top);
+	}
+
+	/**
+	 * Move a waiting thread whose effective priority has changed to the
+	 * list for its new priority.
+	 */
+	void reposition(ThreadState state) {
+	    int top = getTopPriority();
+
+	    unlink(state);
+	    link(state);
+	    donationChanged(top);
+	}
+
+	/**
+	 * Make a thread the owner of this queue, or leave it without an owner
+	 * if <i>state</i> is <tt>null</tt>, moving any donation with it.
+	 */
+	void setOwner(ThreadState state) {
+	    if (!transferPriority) {
+		owner = state;
+		return;
+	    }
+
+	    int top = getTopPriority();
+
+	    if (owner != null)
+		owner.changeDonation(top, -1);
+
+	    owner = state;
+
+	    if (owner != null)
+		owner.changeDonation(-1, top);
+	}
+
+	/**
+	 * Insert a thread into the heap for its effective priority. Threads
+	 * keep the order in which they started waiting, even if they moved
+	 * between heaps because of a donation.
+	 */
+	private void link(ThreadState state) {
+	    int p = state.effectivePriority;
+	    state.queuedPriority = p;
+
+	    if (sizes[p] == heaps[p].length) {
+		ThreadState[] grown = new ThreadState[sizes[p]*2];
+		System.arraycopy(heaps[p], 0, grown, 0, sizes[p]);
+		heaps[p] = grown;
+	    }
+
+	    siftUp(heaps[p], sizes[p]++, state);
+
+	    occupied |= 1 << p;
+	}
+
+	private void unlink(ThreadState state) {
+	    int p = state.queuedPriority;
+	    ThreadState[] heap = heaps[p];
+
+	    int i = state.heapIndex;
+	    ThreadState last = heap[--sizes[p]];
+	    heap[sizes[p]] = null;
+	    state.heapIndex = -1;
+
+	    if (last != state) {
+		if (i > 0 && heap[(i-1)/2].waitTime > last.waitTime)
+		    siftUp(heap, i, last);
+		else
+		    siftDown(heap, sizes[p], i, last);
+	    }
+
+	    if (sizes[p] == 0)
+		occupied &= ~(1 << p);
+	}
+
+	/**
+	 * Place <i>state</i> at or above index <i>i</i> of <i>heap</i>,
+	 * moving earlier-waiting parents down.
+	 */
+	private void siftUp(ThreadState[] heap, int i, ThreadState state) {
+	    while (i > 0) {
+		int parent = (i-1)/2;
+		if (heap[parent].waitTime < state.waitTime)
+		    break;
+
+		heap[i] = heap[parent];
+		heap[i].heapIndex = i;
+		i = parent;
+	    }
+
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	/**
+	 * Place <i>state</i> at or below index <i>i</i> of the first
+	 * <i>size</i> entries of <i>heap</i>, moving later-waiting children up.
+	 */
+	private void siftDown(ThreadState[] heap, int size, int i,
+			      ThreadState state) {
+	    while (2*i+1 < size) {
+		int child = 2*i+1;
+		if (child+1 < size &&
+		    heap[child+1].waitTime < heap[child].waitTime)
+		    child++;
+		if (state.waitTime < heap[child].waitTime)
+		    break;
+
+		heap[i] = heap[child];
+		heap[i].heapIndex = i;
+		i = child;
+	    }
+
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	/**
+	 * Tell the owner if the priority donated by this queue has changed.
+	 *
+	 * @param	oldTop	the highest waiting priority before the change.
+	 */
+	private void donationChanged(int oldTop) {
+	    int top = getTopPriority();
+
+	    if (top != oldTop && transferPriority && owner != null)
+		owner.changeDonation(oldTop, top);
 	}
 
 	/**
@@ -168,6 +350,17 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, if any. */
+	private ThreadState owner = null;
+	/**
+	 * The waiting threads at each priority, as binary heaps ordered by
+	 * wait time, and the number of threads in each.
+	 */
+	private ThreadState[][] heaps = new ThreadState[priorityMaximum+1][4];
+	private int[] sizes = new int[priorityMaximum+1];
+	/** Bit <i>p</i> is set if a thread with priority <i>p</i> waits. */
+	private int occupied = 0;
     }
 
     /**
@@ -205,8 +398,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +412,48 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Called when the highest waiting priority of a queue owned by the
+	 * associated thread changes.
+	 *
+	 * @param	oldPriority	the priority the queue donated before, or
+	 *				-1 if it donated nothing.
+	 * @param	newPriority	the priority it donates now, or -1.
+	 */
+	void changeDonation(int oldPriority, int newPriority) {
+	    if (oldPriority != -1)
+		donations[oldPriority]--;
+	    if (newPriority != -1)
+		donations[newPriority]++;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority from the priority and the
+	 * donations. If it changed and the thread is waiting, the queue it
+	 * waits on is updated, which passes the change on to that queue's
+	 * owner in turn.
+	 */
+	private void updateEffectivePriority() {
+	    int effective = priority;
+	    for (int p=priorityMaximum; p>effective; p--) {
+		if (donations[p] > 0) {
+		    effective = p;
+		    break;
+		}
+	    }
+
+	    if (effective == effectivePriority)
+		return;
+
+	    effectivePriority = effective;
+
+	    if (waitQueue != null)
+		waitQueue.reposition(this);
 	}
 
 	/**
@@ -236,7 +469,12 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitTime = nextWaitTime++;
+
+	    waitQueue.add(this);
 	}
 
 	/**
@@ -250,12 +488,34 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (this.waitQueue == waitQueue)
+		this.waitQueue = null;
+
+	    waitQueue.setOwner(this);
 	}	
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The priority of the associated thread, including donations. */
+	protected int effectivePriority = priorityMinimum;
+	/**
+	 * The number of queues owned by the associated thread whose highest
+	 * waiter has each priority.
+	 */
+	private int[] donations = new int[priorityMaximum+1];
+
+	/** The queue the associated thread is waiting on, if any. */
+	private PriorityQueue waitQueue = null;
+	/** The position of the associated thread in its heap. */
+	private int heapIndex = -1;
+	/** The heap of <tt>waitQueue</tt> the thread is in. */
+	private int queuedPriority;
+	/** When the associated thread started waiting. */
+	private long waitTime;
     }
+
+    /** Orders waiting threads by the time they started waiting. */
+    private long nextWaitTime = 0;
 }
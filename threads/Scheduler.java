@@ -154,4 +154,23 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled,
+     * just before the current thread is made to yield. A scheduler that
+     * accounts for processor time can charge the current thread here. By
+     * default this does nothing.
+     */
+    public void timerInterrupt() {
+    }
+
+    /**
+     * Called by a device driver, with interrupts disabled, just before the
+     * current thread blocks until the device finishes a transfer, such as
+     * a console read or write. A scheduler that favours interactive threads
+     * can raise the thread's priority when it is woken. By default this does
+     * nothing.
+     */
+    public void waitingForIO() {
+    }
 }
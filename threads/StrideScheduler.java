@@ -0,0 +1,308 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that gives threads deterministic, proportional shares of the
+ * processor.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread. Each thread also has a <i>stride</i>, inversely
+ * proportional to its tickets, and a <i>pass</i>, which advances by the
+ * stride for every tick the thread runs. The next thread to be dequeued is
+ * always the thread with the lowest pass, and among threads with the same
+ * pass, the thread that has been waiting longest. No random numbers are
+ * drawn, so the same workload is always scheduled the same way, and over any
+ * interval each thread's share of the processor is within a quantum of its
+ * share of the tickets.
+ *
+ * <p>
+ * A thread that starts waiting after being blocked, or a new thread, is given
+ * at least the pass of the last thread dequeued from the queue, so that it
+ * cannot build up credit while it is not competing.
+ *
+ * <p>
+ * Tickets are not transferred through locks or joins.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	ignored. Stride schedulers do not
+     *					transfer tickets.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge the current thread for the time it has run.
+     */
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	charge();
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = 1 << 16;
+
+    /**
+     * The stride of a thread with one ticket. Large enough that the strides
+     * of all allowed ticket counts are accurate to within a few percent.
+     */
+    private static final long stride1 = 1 << 20;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Advance the pass of the current thread by its stride for every tick
+     * since the last charge. This is done on every timer interrupt and
+     * whenever a queue is used, which includes every context switch, so
+     * each tick is charged to the thread that was running.
+     */
+    private void charge() {
+	long time = Machine.timer().getTime();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	state.pass += state.stride * (time - lastCharge);
+
+	lastCharge = time;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary
+     * min-heap ordered by pass, so the next thread is found in constant time
+     * and threads are added and removed in logarithmic time.
+     */
+    private class StrideQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.heapIndex == -1);
+
+	    if (thread != KThread.currentThread())
+		state.pass = Math.max(state.pass, queuePass);
+
+	    state.arrival = nextArrival++;
+
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size*2);
+
+	    heap[size] = state;
+	    state.heapIndex = size;
+	    size++;
+
+	    siftUp(state.heapIndex);
+	}
+
+	/**
+	 * Remove the thread with the lowest pass.
+	 *
+	 * @return	the thread, or <tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    charge();
+
+	    if (size == 0)
+		return null;
+
+	    ThreadState next = heap[0];
+	    queuePass = next.pass;
+
+	    size--;
+	    heap[0] = heap[size];
+	    heap[0].heapIndex = 0;
+	    heap[size] = null;
+	    if (size > 0)
+		siftDown(0);
+
+	    next.heapIndex = -1;
+	    return next.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" + heap[i].pass + ") ");
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!precedes(state, heap[parent]))
+		    break;
+
+		heap[i] = heap[parent];
+		heap[i].heapIndex = i;
+		i = parent;
+	    }
+
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+
+	    while (2*i+1 < size) {
+		int child = 2*i+1;
+		if (child+1 < size && precedes(heap[child+1], heap[child]))
+		    child++;
+
+		if (!precedes(heap[child], state))
+		    break;
+
+		heap[i] = heap[child];
+		heap[i].heapIndex = i;
+		i = child;
+	    }
+
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	private boolean precedes(ThreadState a, ThreadState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+
+	    return a.arrival < b.arrival;
+	}
+
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	/** The pass of the last thread dequeued. */
+	private long queuePass = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Set the tickets of the associated thread, and its stride.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	void setTickets(int tickets) {
+	    this.tickets = tickets;
+	    stride = stride1 / tickets;
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	/** The tickets of the associated thread. */
+	int tickets;
+	/** How far <tt>pass</tt> advances for each tick the thread runs. */
+	long stride;
+	/** The virtual time of the associated thread. */
+	long pass = 0;
+
+	/** When the thread started waiting, to break ties in pass. */
+	private long arrival;
+	/** The position of the thread in its queue's heap, or -1. */
+	private int heapIndex = -1;
+    }
+
+    /** When the running thread was last charged. */
+    private long lastCharge = 0;
+    private long nextArrival = 0;
+}
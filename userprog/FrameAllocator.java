@@ -0,0 +1,165 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which physical pages are free. Free pages are kept on a
+ * stack, and a bitmap records which pages are on the stack, so allocating or
+ * freeing a page takes constant time no matter how much memory there is.
+ *
+ * <p>
+ * An allocated page may be shared by several address spaces. Each call to
+ * <tt>share()</tt> adds a reference, and the page only becomes free once
+ * <tt>free()</tt> has been called once for every reference.
+ *
+ * <p>
+ * Every operation runs with interrupts disabled, so a
+ * <tt>FrameAllocator</tt> may be shared by all processes.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every page initially free.
+     *
+     * @param	numPages	the number of physical pages to manage.
+     */
+    public FrameAllocator(int numPages) {
+	this.numPages = numPages;
+
+	freeStack = new int[numPages];
+	freeMap = new int[(numPages + 31) / 32];
+	shareCount = new int[numPages];
+
+	// hand out the lowest pages first
+	for (int ppn=numPages-1; ppn>=0; ppn--)
+	    push(ppn);
+    }
+
+    /**
+     * Allocate a free page.
+     *
+     * @return	the physical page number, or -1 if no pages are free.
+     */
+    public int allocate() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = (numFree > 0) ? pop() : -1;
+
+	Machine.interrupt().restore(intStatus);
+
+	return ppn;
+    }
+
+    /**
+     * Allocate a free page for each element of <i>ppns</i>. Either all of the
+     * pages are allocated, or none are.
+     *
+     * @param	ppns	the array in which to store the physical page numbers.
+     * @return	<tt>true</tt> if enough pages were free.
+     */
+    public boolean allocate(int[] ppns) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean enough = (numFree >= ppns.length);
+	if (enough) {
+	    for (int i=0; i<ppns.length; i++)
+		ppns[i] = pop();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return enough;
+    }
+
+    /**
+     * Add a reference to an allocated page, so that it stays allocated until
+     * <tt>free()</tt> has been called one more time.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void share(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPages && !isFree(ppn));
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	shareCount[ppn]++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether an allocated page has more than one reference.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if freeing the page would not make it free.
+     */
+    public boolean isShared(int ppn) {
+	if (ppn < 0 || ppn >= numPages)
+	    return false;
+
+	return shareCount[ppn] > 0;
+    }
+
+    /**
+     * Drop a reference to a page, returning it to the free pages if it was
+     * the last one. Freeing a page that is already free, or that is out of
+     * range, has no effect.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void free(int ppn) {
+	if (ppn < 0 || ppn >= numPages)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (shareCount[ppn] > 0)
+	    shareCount[ppn]--;
+	else if (!isFree(ppn))
+	    push(ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether a page is free.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is not allocated, or <tt>false</tt>
+     *		if it is allocated or out of range.
+     */
+    public boolean isFree(int ppn) {
+	if (ppn < 0 || ppn >= numPages)
+	    return false;
+
+	return (freeMap[ppn >> 5] & (1 << (ppn & 31))) != 0;
+    }
+
+    /**
+     * Return the number of free pages.
+     *
+     * @return	the number of free pages.
+     */
+    public int numFree() {
+	return numFree;
+    }
+
+    private void push(int ppn) {
+	freeStack[numFree++] = ppn;
+	freeMap[ppn >> 5] |= (1 << (ppn & 31));
+    }
+
+    private int pop() {
+	int ppn = freeStack[--numFree];
+	freeMap[ppn >> 5] &= ~(1 << (ppn & 31));
+	return ppn;
+    }
+
+    private int numPages;
+    /** The free pages; the top of the stack is allocated next. */
+    private int[] freeStack;
+    private int numFree = 0;
+    /** One bit per page, set if the page is free. */
+    private int[] freeMap;
+    /** The number of references to each page, beyond the first. */
+    private int[] shareCount;
+}
@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
@@ -42,6 +44,9 @@ public class SynchConsole {
 	readLock.acquire();
 
 	if (block || charAvailable) {
+	    if (!charAvailable)
+		ThreadedKernel.scheduler.waitingForIO();
+
 	    charAvailable = false;
 	    readWait.P();
 
@@ -79,7 +84,12 @@ public class SynchConsole {
     public void writeByte(int value) {
 	writeLock.acquire();
 	console.writeByte(value);
+
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.waitingForIO();
 	writeWait.P();
+	Machine.interrupt().restore(intStatus);
+
 	writeLock.release();
     }
 
@@ -142,6 +152,40 @@ public class SynchConsole {
 	    return length;
 	}
 
+	public int read(ByteBuffer[] bufs) {
+	    if (!canRead)
+		return 0;
+
+	    int amount = 0;
+	    for (int i=0; i<bufs.length; i++) {
+		while (bufs[i].hasRemaining()) {
+		    int value = SynchConsole.this.readByte(false);
+		    if (value == -1)
+			return amount;
+
+		    bufs[i].put((byte) value);
+		    amount++;
+		}
+	    }
+
+	    return amount;
+	}
+
+	public int write(ByteBuffer[] bufs) {
+	    if (!canWrite)
+		return 0;
+
+	    int amount = 0;
+	    for (int i=0; i<bufs.length; i++) {
+		while (bufs[i].hasRemaining()) {
+		    SynchConsole.this.writeByte(bufs[i].get());
+		    amount++;
+		}
+	    }
+
+	    return amount;
+	}
+
 	private boolean canRead, canWrite;
     }
 }
@@ -1,7 +1,5 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -16,34 +14,46 @@ public class UserKernel extends ThreadedKernel {
      */
     public UserKernel() {
 	    super();
-        freePageList = new LinkedList<Integer>();
-    	int numPhysPages = Machine.processor().getNumPhysPages();
-    	for (int i = 0; i < numPhysPages; i++)
-    		freePageList.addLast(i);
+        frameAllocator =
+	    new FrameAllocator(Machine.processor().getNumPhysPages());
     }
 
     /**
-     * Retrieve a physical page from freePageList, if any are available
+     * Retrieve a physical page from frameAllocator, if any are available
      */
     protected static int getNextAvailablePage(){
-    	freePageListLock.acquire();
-    	int ppn = -1;
-    	if(!freePageList.isEmpty())
-    		ppn = (int) freePageList.removeFirst();
-        freePageListLock.release();
-    	return ppn;
+    	return frameAllocator.allocate();
+    }
+
+    /**
+     * Retrieve a physical page for each element of <i>ppns</i>, or none at
+     * all if there are not enough available
+     */
+    protected static boolean getAvailablePages(int[] ppns){
+    	return frameAllocator.allocate(ppns);
     }
     
     /**
-     * Return a physical page to freePageList
+     * Return a physical page to frameAllocator
      */
     protected static void returnAvailablePage(int ppn){
-    	if (ppn < 0 || ppn > Machine.processor().getNumPhysPages())
-    		return;
-        freePageListLock.acquire();
-    	if(!freePageList.contains(ppn))
-            freePageList.addLast(ppn);
-    	freePageListLock.release();
+    	frameAllocator.free(ppn);
+    }
+
+    /**
+     * Add a reference to an allocated physical page, so that it can be mapped
+     * by another address space. Each reference is dropped by
+     * <tt>returnAvailablePage()</tt>.
+     */
+    protected static void shareAvailablePage(int ppn){
+    	frameAllocator.share(ppn);
+    }
+
+    /**
+     * Return true if more than one address space refers to a physical page
+     */
+    protected static boolean isSharedPage(int ppn){
+    	return frameAllocator.isShared(ppn);
     }
 
 
@@ -59,7 +69,6 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
-	freePageListLock = new Lock();
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
 	    });
@@ -142,13 +151,12 @@ public class UserKernel extends ThreadedKernel {
 	    super.terminate();
     }
 
-    //Paging lock and list
-    protected static LinkedList<Integer> freePageList;
-	protected static Lock freePageListLock;
+    //Free physical pages
+    protected static FrameAllocator frameAllocator;
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
-}
\ No newline at end of file
+}
\ No newline at end of file
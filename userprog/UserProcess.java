@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.Hashtable;
 
 
@@ -42,6 +44,20 @@ public class UserProcess {
 		for (int i=0; i<numPhysPages; i++){
 			pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
 		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		pid = nextPID++;
+		Machine.interrupt().restore(intStatus);
+
+		statusLock = new Lock();
+		joinCondition = new Condition(statusLock);
+
+		//descriptors 0 and 1 are the console
+		fd = new OpenFile[maxOpenFiles];
+		if(UserKernel.console != null) {
+			fd[0] = UserKernel.console.openForReading();
+			fd[1] = UserKernel.console.openForWriting();
+		}
     }
     
     /**
@@ -69,6 +85,7 @@ public class UserProcess {
 	
 	threader = new UThread(this);
 	threader.setName(name);
+	startProcess();
 	threader.fork();
 
 	return true;
@@ -145,36 +162,40 @@ public class UserProcess {
      * @return	the number of bytes successfully transferred.
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		
-		//check if any value are invalid, if true return 0 as no data was transferred.
-		if((vaddr < 0) || (data == null) || (offset < 0) || (length < 0) || (offset+length > data.length)){
-			return 0;
-		}
-		byte[] memory = Machine.processor().getMemory();
-		int vpn = Processor.pageFromAddress(vaddr);
-		int off = Processor.offsetFromAddress(vaddr);
-		int ppn = -1;
-		int amount = 0;
-		int copyAmount = 0;
-
-		while(length > 0){
-			//check if vpn is valid
-			if(vpn > pageTable.length || vpn < 0){
-				break;
-			}
-			pageTable[vpn].used = true;
-			ppn = pageTable[vpn].ppn;
-			//System.out.println(ppn);
-			int paddr = Processor.makeAddress(ppn, off);
-			copyAmount = Math.min(pageSize - off, length);
-			System.arraycopy(memory, paddr, data, offset + amount, copyAmount);
-			off = 0;
-			amount += copyAmount;
-			length -= copyAmount;
-			vpn++;
-		}
-
-		return amount;
+	if (data == null || offset < 0 || length < 0 ||
+	    offset+length > data.length)
+	    return 0;
+
+	ByteBuffer[] runs = mapVirtualMemory(vaddr, length, false);
+
+	int amount = 0;
+	for (int i=0; i<runs.length; i++) {
+	    int chunk = runs[i].remaining();
+	    runs[i].get(data, offset+amount, chunk);
+	    amount += chunk;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified file,
+     * starting at the file's current file pointer. The data is written
+     * straight from physical memory, one run of contiguous physical pages at
+     * a time, without being copied into a temporary array.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	file	the file to write the data to.
+     * @param	length	the number of bytes to transfer from virtual memory to
+     *			the file.
+     * @return	the number of bytes successfully transferred, or -1 if the
+     *		file could not be written.
+     */
+    public int readVirtualMemory(int vaddr, OpenFile file, int length) {
+	if (file == null || length < 0)
+	    return 0;
+
+	return file.write(mapVirtualMemory(vaddr, length, false));
     }
 
     /**
@@ -205,40 +226,136 @@ public class UserProcess {
      * @return	the number of bytes successfully transferred.
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		
-		//check if any value are invalid, if true return 0 as no data was transferred.
-		if((vaddr < 0) || (data == null) || (offset < 0) || (length < 0) || (offset+length > data.length)){
-			return 0;
-		}
-		byte[] memory = Machine.processor().getMemory();
-		int vpn = Processor.pageFromAddress(vaddr);
-		int off = Processor.offsetFromAddress(vaddr);
-		int ppn = -1;
-		int amount = 0;
-		int copyAmount = 0;
-		
-		while(length > 0){
-			//check if vpn is valid
-			if(vpn > pageTable.length || vpn < 0){
-				break;
-			}
-			ppn = pageTable[vpn].ppn;
-			//check if vpn is read only
-			if(pageTable[vpn].readOnly){
-				break;
-			}
-			pageTable[vpn].dirty = true;
-			pageTable[vpn].used = true;
-			int paddr = Processor.makeAddress(ppn, off);
-			copyAmount = Math.min(pageSize - off, length);
-			System.arraycopy(data, offset + amount, memory, paddr, copyAmount);
-			off = 0;
-			amount += copyAmount;
-			length -= copyAmount;
-			vpn++;
-		}
-
-		return amount;
+	if (data == null || offset < 0 || length < 0 ||
+	    offset+length > data.length)
+	    return 0;
+
+	ByteBuffer[] runs = mapVirtualMemory(vaddr, length, true);
+
+	int amount = 0;
+	for (int i=0; i<runs.length; i++) {
+	    int chunk = runs[i].remaining();
+	    runs[i].put(data, offset+amount, chunk);
+	    amount += chunk;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from the specified file to this process's virtual memory,
+     * starting at the file's current file pointer. The data is read straight
+     * into physical memory, one run of contiguous physical pages at a time,
+     * without being copied through a temporary array.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	file	the file to read the data from.
+     * @param	length	the number of bytes to transfer from the file to
+     *			virtual memory.
+     * @return	the number of bytes successfully transferred, or -1 if the
+     *		file could not be read.
+     */
+    public int writeVirtualMemory(int vaddr, OpenFile file, int length) {
+	if (file == null || length < 0)
+	    return 0;
+
+	return file.read(mapVirtualMemory(vaddr, length, true));
+    }
+
+    /**
+     * Translate a range of this process's virtual memory into the runs of
+     * physical memory that hold it. Every page in the range is translated
+     * before any data is transferred, and pages that are adjacent in
+     * physical memory are merged into a single run, so a transfer takes one
+     * bulk copy per run instead of one per page. The range ends early at the
+     * first page that is not mapped or, when writing, that cannot be made
+     * writable.
+     *
+     * @param	vaddr	the first byte of virtual memory in the range.
+     * @param	length	the number of bytes in the range.
+     * @param	write	<tt>true</tt> if the range is about to be written, in
+     *			which case its pages are marked dirty.
+     * @return	views of physical memory, one per run and in virtual address
+     *		order, each positioned at the start of its run and limited to
+     *		its end.
+     */
+    protected ByteBuffer[] mapVirtualMemory(int vaddr, int length,
+					    boolean write) {
+	if (vaddr < 0 || length <= 0)
+	    return new ByteBuffer[0];
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	int lastVPN = Processor.pageFromAddress(vaddr + Math.min(length - 1,
+							   Integer.MAX_VALUE - vaddr));
+	lastVPN = Math.min(lastVPN, numPages - 1);
+	if (firstVPN > lastVPN)
+	    return new ByteBuffer[0];
+
+	int[] runStarts = new int[lastVPN - firstVPN + 1];
+	int[] runLengths = new int[lastVPN - firstVPN + 1];
+	int numRuns = 0;
+
+	int pageOffset = Processor.offsetFromAddress(vaddr);
+	int remaining = length;
+
+	for (int vpn=firstVPN; vpn<=lastVPN && remaining > 0; vpn++) {
+	    TranslationEntry entry = translate(vpn);
+	    if (entry == null)
+		break;
+
+	    // a copy-on-write page gets its own frame before being written
+	    if (write && entry.readOnly) {
+		if (!handleCopyOnWrite(vpn))
+		    break;
+
+		entry = translate(vpn);
+	    }
+
+	    entry.used = true;
+	    if (write)
+		entry.dirty = true;
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int chunk = Math.min(pageSize - pageOffset, remaining);
+
+	    if (numRuns > 0 &&
+		runStarts[numRuns-1] + runLengths[numRuns-1] == paddr) {
+		runLengths[numRuns-1] += chunk;
+	    }
+	    else {
+		runStarts[numRuns] = paddr;
+		runLengths[numRuns] = chunk;
+		numRuns++;
+	    }
+
+	    pageOffset = 0;
+	    remaining -= chunk;
+	}
+
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
+
+	ByteBuffer[] runs = new ByteBuffer[numRuns];
+	for (int i=0; i<numRuns; i++) {
+	    runs[i] = memory.duplicate();
+	    runs[i].limit(runStarts[i] + runLengths[i]);
+	    runs[i].position(runStarts[i]);
+	}
+
+	return runs;
+    }
+
+    /**
+     * Return the translation of a virtual page of this process.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the translation, or <tt>null</tt> if the page is not mapped.
+     */
+    protected TranslationEntry translate(int vpn) {
+	if (pageTable == null || vpn < 0 || vpn >= pageTable.length ||
+	    !pageTable[vpn].valid)
+	    return null;
+
+	return pageTable[vpn];
     }
 
     /**
@@ -338,7 +455,9 @@ public class UserProcess {
      */
     protected boolean loadSections() {
 		LSLock.acquire();
-		if(numPages > UserKernel.freePageList.size()){
+		//allocate every page at once, including the stack and argument pages
+		int[] ppns = new int[numPages];
+		if(!UserKernel.getAvailablePages(ppns)){
 			coff.close();
 			Lib.debug(dbgProcess, "insufficient physical memory");
 			LSLock.release();
@@ -348,25 +467,19 @@ public class UserProcess {
 		//pageTable = new TranslationEntry[numPages];
 
 		int vpn = 0;
-		int ppn = -1;
 		for(int s = 0; s < coff.getNumSections(); s++){
 			CoffSection section = coff.getSection(s);
 			Lib.debug(dbgProcess, "initializing " + section.getName() + " section(" + section.getLength() + " pages).");
 			for(int i = 0; i < section.getLength(); i++){
 				vpn = section.getFirstVPN() + i;
-				ppn = UserKernel.getNextAvailablePage();
-				//System.out.println(i +"->"+ ppn);
-				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
-				if(ppn < 0)
-					break;
-				section.loadPage(i, ppn);
+				//System.out.println(i +"->"+ ppns[vpn]);
+				pageTable[vpn] = new TranslationEntry(vpn, ppns[vpn], true, section.isReadOnly(), false, false);
+				section.loadPage(i, ppns[vpn]);
 			}
 		}
 
-		for(int i = 0; i < stackPages; i++){
-			vpn++;
-			ppn = UserKernel.getNextAvailablePage();
-			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
+		for(vpn++; vpn < numPages; vpn++){
+			pageTable[vpn] = new TranslationEntry(vpn, ppns[vpn], true, false, false, false);
 		}
 
 		LSLock.release();
@@ -382,23 +495,119 @@ public class UserProcess {
 			return;
 		}
 
-		for(int i = 0; i < pageTable.length; i++){
+		//only the first numPages entries were allocated by loadSections()
+		for(int i = 0; i < numPages; i++){
 			UserKernel.returnAvailablePage(pageTable[i].ppn);
 		}
     }    
 
+    /**
+     * Initializes page tables for this process as a copy of <i>parent</i>'s
+     * address space. No pages are copied: every physical page is shared, and
+     * writable pages are made read-only in both processes until one of them
+     * writes to it (see <tt>handleCopyOnWrite()</tt>).
+     *
+     * @param	parent	the process to copy.
+     * @return	<tt>true</tt> if successful.
+     */
+    protected boolean forkSections(UserProcess parent) {
+	numPages = parent.numPages;
+	pageTable = new TranslationEntry[parent.pageTable.length];
+	copyOnWrite = new boolean[numPages];
+
+	if (parent.copyOnWrite == null)
+	    parent.copyOnWrite = new boolean[parent.numPages];
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = parent.pageTable[vpn];
+
+	    if (vpn < numPages && entry.valid) {
+		UserKernel.shareAvailablePage(entry.ppn);
+
+		if (!entry.readOnly) {
+		    entry.readOnly = true;
+		    parent.copyOnWrite[vpn] = true;
+		}
+		copyOnWrite[vpn] = parent.copyOnWrite[vpn];
+	    }
+
+	    pageTable[vpn] = new TranslationEntry(entry);
+	    pageTable[vpn].used = false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Give this process its own copy of a page it shares copy-on-write with
+     * another process, so that it can be written. If no other process still
+     * shares the page, it is simply made writable again.
+     *
+     * @param	vpn	the virtual page being written.
+     * @return	<tt>true</tt> if the page is now writable, or <tt>false</tt> if
+     *		it is really read-only or no physical page is free.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	if (copyOnWrite == null || vpn < 0 || vpn >= numPages ||
+	    !copyOnWrite[vpn])
+	    return false;
+
+	TranslationEntry entry = translate(vpn);
+	if (entry == null)
+	    return false;
+
+	if (UserKernel.isSharedPage(entry.ppn)) {
+	    int ppn = UserKernel.getNextAvailablePage();
+	    if (ppn == -1) {
+		Lib.debug(dbgProcess, "\tno free page to copy vpn " + vpn);
+		return false;
+	    }
+
+	    Lib.debug(dbgProcess, "\tcopying vpn " + vpn + " from ppn "
+		      + entry.ppn + " to ppn " + ppn);
+
+	    ByteBuffer page = Machine.processor().getMemoryBuffer();
+	    page.position(entry.ppn*pageSize);
+	    page.limit(page.position() + pageSize);
+
+	    ByteBuffer memory = Machine.processor().getMemoryBuffer();
+	    memory.position(ppn*pageSize);
+	    memory.put(page);
+
+	    UserKernel.returnAvailablePage(entry.ppn);
+	    entry.ppn = ppn;
+	}
+
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+
+	return true;
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
      * start function, set the stack pointer register to point at the top of
      * the stack, set the A0 and A1 registers to argc and argv, respectively,
      * and initialize all other registers to 0.
+     *
+     * <p>
+     * A process created by <tt>fork()</tt> instead starts with a copy of its
+     * parent's registers.
      */
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	if (forkedRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkedRegisters[i]);
+
+	    forkedRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
-	for (int i=0; i<processor.numUserRegisters; i++)
+	for (int i=0; i<Processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
 
 	// initialize PC and SP according
@@ -418,9 +627,10 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-	Machine.halt();
+	// let the kernel clean up (e.g. remove its swap file) before halting
+	Kernel.kernel.terminate();
 	
-	Lib.assertNotReached("Machine.halt() did not halt machine!");
+	Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 	return 0;
     }
 	    /**
@@ -623,6 +833,248 @@ public class UserProcess {
 		return -1;
 	}
 	
+	/**
+	 * Handle the creat() and open() system calls, opening the named file
+	 * under the lowest free descriptor. creat() also creates the file, or
+	 * truncates it if it exists. A file that has been unlinked cannot be
+	 * opened until it has been deleted.
+	 */
+	private int handleOpen(int name, boolean create) {
+		String filename = readVirtualMemoryString(name, maxFileNameLength);
+		if(filename == null || isUnlinked(filename)) {
+			return -1;
+		}
+		for(int i = 2; i < fd.length; i++) {
+			if(fd[i] == null) {
+				OpenFile file = ThreadedKernel.fileSystem.open(filename, create);
+				if(file == null) {
+					return -1;
+				}
+				// the file may have been unlinked while it was opened
+				if(!addOpenFile(file)) {
+					file.close();
+					return -1;
+				}
+				fd[i] = file;
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Handle the unlink() system call. The file is deleted right away if
+	 * no process has it open. Otherwise it is deleted once the last
+	 * descriptor referring to it is closed.
+	 */
+	private int handleUnlink(int name) {
+		String filename = readVirtualMemoryString(name, maxFileNameLength);
+		if(filename == null) {
+			return -1;
+		}
+		// the name stays unlinked until the file is gone, so that it
+		// cannot be opened in the meantime
+		boolean intStatus = Machine.interrupt().disable();
+		boolean deferred = openFiles.containsKey(filename) ||
+			unlinkedFiles.contains(filename);
+		unlinkedFiles.add(filename);
+		Machine.interrupt().restore(intStatus);
+		if(deferred) {
+			return 0;
+		}
+		return deleteFile(filename) ? 0 : -1;
+	}
+
+	/**
+	 * Test whether a file has been unlinked but not yet deleted.
+	 */
+	private static boolean isUnlinked(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean unlinked = unlinkedFiles.contains(name);
+		Machine.interrupt().restore(intStatus);
+		return unlinked;
+	}
+
+	/**
+	 * Record that a descriptor refers to a newly opened file, unless the
+	 * file has been unlinked.
+	 *
+	 * @return	<tt>true</tt> if the file may be used.
+	 */
+	private static boolean addOpenFile(OpenFile file) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean unlinked = unlinkedFiles.contains(file.getName());
+		if(!unlinked) {
+			Integer count = openFiles.get(file.getName());
+			openFiles.put(file.getName(), (count == null) ? 1 : count + 1);
+		}
+		Machine.interrupt().restore(intStatus);
+		return !unlinked;
+	}
+
+	/**
+	 * Delete an unlinked file that no process has open.
+	 *
+	 * @return	<tt>true</tt> if the file was deleted.
+	 */
+	private static boolean deleteFile(String name) {
+		boolean removed = ThreadedKernel.fileSystem.remove(name);
+		boolean intStatus = Machine.interrupt().disable();
+		unlinkedFiles.remove(name);
+		Machine.interrupt().restore(intStatus);
+		return removed;
+	}
+
+	/**
+	 * Handle the close() system call.
+	 */
+	private int handleClose(int fileDescriptor) {
+		OpenFile file = getOpenFile(fileDescriptor);
+		if(file == null) {
+			return -1;
+		}
+		closeFile(file);
+		fd[fileDescriptor] = null;
+		return 0;
+	}
+
+	/**
+	 * Record that one more process has a file open, after a fork copied
+	 * the descriptor. The processes share the file and its position.
+	 */
+	private static void shareFile(OpenFile file) {
+		boolean intStatus = Machine.interrupt().disable();
+		Integer count = sharedFiles.get(file);
+		sharedFiles.put(file, (count == null) ? 2 : count + 1);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Close a descriptor's file, unless another process forked from the
+	 * same one still has it open. Deletes the file if it was unlinked and
+	 * this was the last descriptor referring to it.
+	 */
+	private static void closeFile(OpenFile file) {
+		String name = file.getName();
+		boolean delete = false;
+		boolean intStatus = Machine.interrupt().disable();
+		Integer count = sharedFiles.get(file);
+		if(count == null) {
+			file.close();
+			Integer opened = openFiles.get(name);
+			if(file.getFileSystem() == ThreadedKernel.fileSystem &&
+			   opened != null) {
+				if(opened == 1) {
+					openFiles.remove(name);
+					delete = unlinkedFiles.contains(name);
+				} else {
+					openFiles.put(name, opened - 1);
+				}
+			}
+		} else if(count == 2) {
+			sharedFiles.remove(file);
+		} else {
+			sharedFiles.put(file, count - 1);
+		}
+		Machine.interrupt().restore(intStatus);
+		if(delete) {
+			deleteFile(name);
+		}
+	}
+
+	/**
+	 * Handle the read() system call. The data is read from the file
+	 * straight into this process's physical memory, one run of contiguous
+	 * pages at a time, without going through a kernel buffer.
+	 */
+	private int handleRead(int fileDescriptor, int buffer, int count) {
+		OpenFile file = getOpenFile(fileDescriptor);
+		if(file == null || !isUserRange(buffer, count)) {
+			return -1;
+		}
+		return writeVirtualMemory(buffer, file, count);
+	}
+
+	/**
+	 * Handle the write() system call. The data is written to the file
+	 * straight from this process's physical memory, like
+	 * <tt>handleRead()</tt>.
+	 */
+	private int handleWrite(int fileDescriptor, int buffer, int count) {
+		OpenFile file = getOpenFile(fileDescriptor);
+		if(file == null || !isUserRange(buffer, count)) {
+			return -1;
+		}
+		return readVirtualMemory(buffer, file, count);
+	}
+
+	/**
+	 * Return the file open under the specified descriptor, or <tt>null</tt>
+	 * if the descriptor is not in use.
+	 */
+	protected OpenFile getOpenFile(int fileDescriptor) {
+		if(fd == null || fileDescriptor < 0 || fileDescriptor >= fd.length) {
+			return null;
+		}
+		return fd[fileDescriptor];
+	}
+
+	/**
+	 * Test whether a buffer lies entirely inside this process's address
+	 * space.
+	 */
+	private boolean isUserRange(int vaddr, int length) {
+		return vaddr >= 0 && length >= 0 &&
+			length <= numPages*pageSize - vaddr;
+	}
+
+	/**
+	 * Handle the fork() system call. The child starts with a copy-on-write
+	 * copy of this process's address space and registers, and returns 0
+	 * from the syscall.
+	 */
+	private int handleFork() {
+		Processor processor = Machine.processor();
+
+		UserProcess child = newUserProcess();
+		if(!child.forkSections(this)) {
+			return -1;
+		}
+		if(this.fd != null) {
+			child.fd = this.fd.clone();
+			for(int i = 0; i < child.fd.length; i++) {
+				if(child.fd[i] != null) {
+					shareFile(child.fd[i]);
+				}
+			}
+		}
+		child.initialPC = this.initialPC;
+		child.initialSP = this.initialSP;
+		child.argc = this.argc;
+		child.argv = this.argv;
+
+		//the child resumes after the syscall, which returns 0
+		child.forkedRegisters = new int[Processor.numUserRegisters];
+		for(int i = 0; i < Processor.numUserRegisters; i++) {
+			child.forkedRegisters[i] = processor.readRegister(i);
+		}
+		child.forkedRegisters[Processor.regV0] = 0;
+		child.forkedRegisters[Processor.regPC] =
+			processor.readRegister(Processor.regNextPC);
+		child.forkedRegisters[Processor.regNextPC] =
+			processor.readRegister(Processor.regNextPC) + 4;
+
+		this.children.put(child.pid, child);
+		child.parent = this;
+
+		child.threader = new UThread(child);
+		child.threader.setName(threader != null ? threader.getName() : "fork");
+		child.startProcess();
+		child.threader.fork();
+
+		return child.pid;
+	}
+
 	private int handleJoin(int procid, int status) {
 		if(!this.children.containsKey(procid)) {
 			System.err.println("NON_CHILD_EXCEPTION");
@@ -655,7 +1107,8 @@ public class UserProcess {
 
 		for(int i = 2; i < this.fd.length; i++) {
 			if(this.fd[i] != null) {
-				this.fd[i].close();
+				closeFile(this.fd[i]);
+				this.fd[i] = null;
 			}
 		}
 
@@ -690,7 +1143,8 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFork = 13;
 	static OpenFile[] fileList = new OpenFile[20];
 	static int[] omg = new int[20];
 	static int fileDescript = 2;
@@ -714,6 +1168,7 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -732,7 +1187,23 @@ public class UserProcess {
 	case syscallJoin:
 	    return handleJoin(a0, a1);
 	case syscallExit:
-	    return handleExit(a0);
+	    handleExit(a0);
+	    finishProcess();
+	    break;
+	case syscallCreate:
+	    return handleOpen(a0, true);
+	case syscallOpen:
+	    return handleOpen(a0, false);
+	case syscallRead:
+	    return handleRead(a0, a1, a2);
+	case syscallWrite:
+	    return handleWrite(a0, a1, a2);
+	case syscallClose:
+	    return handleClose(a0);
+	case syscallUnlink:
+	    return handleUnlink(a0);
+	case syscallFork:
+	    return handleFork();
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 	    Lib.assertNotReached("Unknown system call!");
@@ -762,14 +1233,62 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+
+	case Processor.exceptionReadOnly:
+	    // a write to a page that is read-only, not just copy-on-write
+	    if (!handleCopyOnWrite(Processor.pageFromAddress(
+		    processor.readRegister(Processor.regBadVAddr))))
+		killProcess(cause);
+	    break;
 				       
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    killProcess(cause);
 	}
     }
 
+    /**
+     * Terminate this process after an exception it cannot recover from, such
+     * as a fault on an address outside its address space or running out of
+     * memory. The process exits with status -1. Never returns.
+     *
+     * @param	cause	the user exception that occurred.
+     */
+    protected void killProcess(int cause) {
+	Lib.debug(dbgProcess, "Killing process " + pid + " after "
+		  + Processor.exceptionNames[cause]);
+
+	handleExit(-1);
+	finishProcess();
+    }
+
+    /**
+     * Count a process that is about to start running.
+     */
+    private void startProcess() {
+	boolean intStatus = Machine.interrupt().disable();
+	numRunning++;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Finish the thread running this process, once it has exited. If it was
+     * the last process, the machine halts. Never returns.
+     */
+    protected void finishProcess() {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean last = (--numRunning == 0);
+	Machine.interrupt().restore(intStatus);
+
+	if (last)
+	    Kernel.kernel.terminate();
+
+	KThread.finish();
+
+	Lib.assertNotReached();
+    }
+
 
 
 
@@ -781,6 +1300,10 @@ public class UserProcess {
 		System.out.println("Number of pages in all of memory: " + Machine.processor().getNumPhysPages());
 
 		UserProcess dummy1 = UserProcess.newUserProcess();
+		if(dummy1.pageTable == null) {
+			System.out.println("Skipped: resident pages are not kept in a page table");
+			return;
+		}
 		System.out.println("Dummy1's numPages before load is called:" + dummy1.numPages);
 		dummy1.load("sort.coff", dummyArgs);
 		System.out.println("Dummy1's numPages after load is called:" + dummy1.numPages);
@@ -790,7 +1313,7 @@ public class UserProcess {
 		}
 
 		//Reading
-		byte[] memory = Machine.processor().getMemory();
+		ByteBuffer memory = Machine.processor().getMemoryBuffer();
         byte[] data = new byte[pageSize];
 		int vaddr = 1;
 		dummy1.readVirtualMemory(vaddr, data, 0, 1024);
@@ -805,18 +1328,17 @@ public class UserProcess {
 		int numWritten = dummy1.writeVirtualMemory(vaddr, data, 0, 2);
         int paddr = Processor.makeAddress(dummy1.pageTable[slots].ppn, 0);
 		System.out.println("dummy1: Number of bytes written: " + numWritten);
-        System.out.println("dummy1: Writing in VM: " + memory[paddr-1] + " " + memory[paddr] + " " + memory[paddr+1] + " " + memory[paddr+2]);
+        System.out.println("dummy1: Writing in VM: " + memory.get(paddr-1) + " " + memory.get(paddr) + " " + memory.get(paddr+1) + " " + memory.get(paddr+2));
 
 		//Unloading
-		int temp = UserKernel.freePageList.size();
-		System.out.println("dummy1: The list size before return ppn: " + temp);
+		int temp = UserKernel.frameAllocator.numFree();
+		System.out.println("dummy1: The number of free pages before return ppn: " + temp);
 		dummy1.unloadSections();
-		System.out.println("dummy1: Checking to see if all ppn are returned: " + (UserKernel.freePageList.size() - temp));
-        System.out.println("dummy1: Verifying the last ppn added into the freePageList:");
+		System.out.println("dummy1: Checking to see if all ppn are returned: " + (UserKernel.frameAllocator.numFree() - temp));
+        System.out.println("dummy1: Verifying the ppns returned to the frameAllocator:");
 		for (int i = 0; i < dummy1.numPages; i++) {
-            int tempPPN = UserKernel.freePageList.get(temp + i);
-            System.out.println("\t-> ppn added at: " + (temp + i) + ", position: " + tempPPN);
-            UserKernel.freePageList.add(temp + i, tempPPN);
+            int tempPPN = dummy1.pageTable[i].ppn;
+            System.out.println("\t-> ppn: " + tempPPN + ", free: " + UserKernel.frameAllocator.isFree(tempPPN));
         }
 
 		//dummy2
@@ -829,15 +1351,14 @@ public class UserProcess {
 		for(int i = 0; i < dummy2.numPages; i++){
 			System.out.println("\t-> VPN: " + i + ", ppn: " + dummy2.pageTable[i].ppn);
 		}
-		int temp2 = UserKernel.freePageList.size();
+		int temp2 = UserKernel.frameAllocator.numFree();
 		System.out.println("dummy2: Number of ppns: " + temp2);
 		dummy2.unloadSections();
-		System.out.println("dummy2: Checking if ppns where returned: " + (UserKernel.freePageList.size() - temp2));
-		System.out.println("dummy2: Checking last ppn added into freePageList: ");
+		System.out.println("dummy2: Checking if ppns where returned: " + (UserKernel.frameAllocator.numFree() - temp2));
+		System.out.println("dummy2: Checking ppns returned to frameAllocator: ");
 		for(int i = 0; i < dummy2.numPages; i++){
 			
-			System.out.println("\t-> ppn added at: " + (i + temp2) + ", Position: " + UserKernel.freePageList.get(temp2 + i));
-			UserKernel.freePageList.add(i + temp2, UserKernel.freePageList.get(temp2 + i));
+			System.out.println("\t-> ppn: " + dummy2.pageTable[i].ppn + ", free: " + UserKernel.frameAllocator.isFree(dummy2.pageTable[i].ppn));
 		}
 
 		System.out.println("************ End of Task 2 Test **************");
@@ -871,15 +1392,44 @@ public class UserProcess {
 
 	private Lock LSLock;
 	private UThread threader = null;
+	/** The registers a forked process starts with, until it first runs. */
+	private int[] forkedRegisters = null;
+	private static int nextPID = 0;
+	/**
+	 * The number of descriptors referring to each file shared by fork(),
+	 * if more than one.
+	 */
+	private static Hashtable<OpenFile,Integer> sharedFiles =
+		new Hashtable<OpenFile,Integer>();
+	/**
+	 * The number of files opened through a descriptor under each name, if
+	 * any are still open.
+	 */
+	private static Hashtable<String,Integer> openFiles =
+		new Hashtable<String,Integer>();
+	/** Files that have been unlinked while open, and not yet deleted. */
+	private static HashSet<String> unlinkedFiles = new HashSet<String>();
+	/** The number of processes that have started and not yet finished. */
+	private static int numRunning = 0;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /**
+     * Which pages are read-only only until written, because they are shared
+     * with a forked process. <tt>null</tt> if this process never forked.
+     */
+    protected boolean[] copyOnWrite = null;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
+    /** The maximum number of files a process can have open at once. */
+    protected static final int maxOpenFiles = 16;
+    /** The longest file name a syscall accepts, not counting the null. */
+    private static final int maxFileNameLength = 256;
+
     private int initialPC, initialSP;
     private int argc, argv;
 	
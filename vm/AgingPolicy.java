@@ -0,0 +1,63 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of least-recently-used replacement by aging. Each page
+ * has a counter; every time a victim is chosen, the counters are shifted
+ * right and the used bit is shifted in at the top (and cleared). The page
+ * with the smallest counter was used least recently.
+ */
+public class AgingPolicy extends PageReplacementPolicy {
+    /**
+     * Allocate a new aging policy.
+     */
+    public AgingPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+	super.initialize(coreMap);
+
+	ages = new int[coreMap.getNumPhysPages()];
+    }
+
+    public void pageMapped(int ppn) {
+	// a page that was just paged in is about to be used
+	ages[ppn] = newPageAge;
+    }
+
+    public int chooseVictim() {
+	int numPhysPages = coreMap.getNumPhysPages();
+
+	int victim = -1;
+	for (int i=0; i<numPhysPages; i++) {
+	    // start after the last victim, so ties are broken fairly
+	    int ppn = (hand+i) % numPhysPages;
+
+	    if (!coreMap.isEvictable(ppn))
+		continue;
+
+	    ages[ppn] >>>= 1;
+	    if (coreMap.clearUsed(ppn))
+		ages[ppn] |= newPageAge;
+
+	    if (victim == -1 || Integer.compareUnsigned(ages[ppn],
+							ages[victim]) < 0)
+		victim = ppn;
+	}
+
+	if (victim != -1)
+	    hand = (victim+1) % numPhysPages;
+
+	return victim;
+    }
+
+    /** The age counter of each physical page. */
+    private int[] ages;
+    private int hand = 0;
+
+    private static final int newPageAge = 1 << 31;
+}
@@ -0,0 +1,36 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The clock algorithm. A hand sweeps over the physical pages, giving each
+ * page whose used bit is set a second chance by clearing the bit, and
+ * evicting the first page whose used bit is already clear.
+ */
+public class ClockPolicy extends PageReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public int chooseVictim() {
+	int numPhysPages = coreMap.getNumPhysPages();
+
+	// the first sweep may only clear used bits
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (coreMap.isEvictable(ppn) && !coreMap.clearUsed(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,291 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * The global inverted page table. For every physical page, records which
+ * process maps it and at which virtual page, so that a page can be evicted
+ * given only its physical page number.
+ *
+ * <p>
+ * A page mapped by several processes at the same virtual page, either a
+ * read-only page of an executable they all run or a page shared
+ * copy-on-write after a fork, is recorded under one owner, with the other
+ * processes kept as sharers; when the owner stops mapping it, a sharer takes
+ * over. Evicting such a page evicts it from every process mapping it, so it
+ * is only evictable, used or dirty as seen by all of them together. Pages
+ * with no owner are never evicted. The caller must hold
+ * <tt>VMKernel.memoryLock</tt> while using a <tt>CoreMap</tt>.
+ */
+public class CoreMap {
+    /**
+     * Allocate a new core map, with no pages mapped.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public CoreMap(int numPhysPages) {
+	processes = new VMProcess[numPhysPages];
+	vpns = new int[numPhysPages];
+	cleaning = new boolean[numPhysPages];
+    }
+
+    /**
+     * Return the number of physical pages in the core map.
+     *
+     * @return	the number of physical pages.
+     */
+    public int getNumPhysPages() {
+	return processes.length;
+    }
+
+    /**
+     * Return the process that maps a physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the owning process, or <tt>null</tt> if the page has no owner.
+     */
+    public VMProcess getProcess(int ppn) {
+	return processes[ppn];
+    }
+
+    /**
+     * Return the virtual page at which a physical page is mapped by its
+     * owner.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the virtual page number.
+     */
+    public int getVPN(int ppn) {
+	Lib.assertTrue(processes[ppn] != null);
+
+	return vpns[ppn];
+    }
+
+    /**
+     * Return every process that maps a physical page, owner first.
+     *
+     * @param	ppn	the physical page number.
+     * @return	a new list of the processes mapping the page.
+     */
+    LinkedList<VMProcess> getProcesses(int ppn) {
+	LinkedList<VMProcess> all = new LinkedList<VMProcess>();
+
+	if (processes[ppn] != null) {
+	    all.add(processes[ppn]);
+
+	    LinkedList<VMProcess> others = sharers.get(ppn);
+	    if (others != null)
+		all.addAll(others);
+	}
+
+	return all;
+    }
+
+    /**
+     * Record that a physical page is mapped by a process.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process mapping the page.
+     * @param	vpn	the virtual page the process maps it at.
+     */
+    void map(int ppn, VMProcess process, int vpn) {
+	processes[ppn] = process;
+	vpns[ppn] = vpn;
+	sharers.remove(ppn);
+	cleaning[ppn] = false;
+    }
+
+    /**
+     * Record that another process maps a physical page at the same virtual
+     * page as its owner.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process now sharing the page.
+     */
+    void share(int ppn, VMProcess process) {
+	Lib.assertTrue(processes[ppn] != null);
+
+	LinkedList<VMProcess> others = sharers.get(ppn);
+	if (others == null) {
+	    others = new LinkedList<VMProcess>();
+	    sharers.put(ppn, others);
+	}
+
+	others.add(process);
+    }
+
+    /**
+     * Record that a process no longer maps a physical page. If it was the
+     * owner, one of the sharers becomes the owner.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that stopped mapping the page.
+     * @return	<tt>true</tt> if no process maps the page any more.
+     */
+    boolean unmap(int ppn, VMProcess process) {
+	LinkedList<VMProcess> others = sharers.get(ppn);
+
+	if (others == null) {
+	    if (processes[ppn] == process)
+		processes[ppn] = null;
+	}
+	else {
+	    if (processes[ppn] == process)
+		processes[ppn] = others.removeFirst();
+	    else
+		others.remove(process);
+
+	    if (others.isEmpty())
+		sharers.remove(ppn);
+	}
+
+	if (processes[ppn] != null)
+	    return false;
+
+	cleaning[ppn] = false;
+	return true;
+    }
+
+    /**
+     * Record that a physical page is being written out with
+     * <tt>VMKernel.memoryLock</tt> released, so that it is not chosen for
+     * eviction again in the meantime.
+     *
+     * @param	ppn	the physical page number.
+     */
+    void startCleaning(int ppn) {
+	Lib.assertTrue(processes[ppn] != null && !cleaning[ppn]);
+
+	cleaning[ppn] = true;
+    }
+
+    /**
+     * Record that a physical page is no longer being written out.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page was mapped by some process the whole
+     *		time since <tt>startCleaning()</tt>, and so holds the same
+     *		contents, unless one of them has written it.
+     */
+    boolean finishCleaning(int ppn) {
+	boolean unchanged = cleaning[ppn];
+	cleaning[ppn] = false;
+
+	return unchanged;
+    }
+
+    /**
+     * Test whether a physical page may be evicted.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page has an owner, is not being written
+     *		out, and every process mapping it still maps it and none has it
+     *		pinned.
+     */
+    public boolean isEvictable(int ppn) {
+	VMProcess process = processes[ppn];
+	if (process == null || cleaning[ppn] ||
+	    !process.isEvictable(vpns[ppn], ppn))
+	    return false;
+
+	LinkedList<VMProcess> others = sharers.get(ppn);
+	if (others != null) {
+	    for (VMProcess other : others) {
+		if (!other.isEvictable(vpns[ppn], ppn))
+		    return false;
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Test the used bit of an evictable page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if any process mapping the page has used it
+     *		since its used bit was last cleared.
+     */
+    public boolean isUsed(int ppn) {
+	if (processes[ppn].isUsed(vpns[ppn]))
+	    return true;
+
+	LinkedList<VMProcess> others = sharers.get(ppn);
+	if (others != null) {
+	    for (VMProcess other : others) {
+		if (other.isUsed(vpns[ppn]))
+		    return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Test the dirty bit of an evictable page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if evicting the page would mean writing it to
+     *		the swap file.
+     */
+    public boolean isDirty(int ppn) {
+	if (processes[ppn].isDirty(vpns[ppn]))
+	    return true;
+
+	LinkedList<VMProcess> others = sharers.get(ppn);
+	if (others != null) {
+	    for (VMProcess other : others) {
+		if (other.isDirty(vpns[ppn]))
+		    return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Clear the used bit of an evictable page, in every process mapping it.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if any process mapping the page had used it
+     *		since its used bit was last cleared.
+     */
+    public boolean clearUsed(int ppn) {
+	boolean used = processes[ppn].clearUsed(vpns[ppn]);
+
+	LinkedList<VMProcess> others = sharers.get(ppn);
+	if (others != null) {
+	    for (VMProcess other : others)
+		used |= other.clearUsed(vpns[ppn]);
+	}
+
+	return used;
+    }
+
+    /**
+     * Write a dirty evictable page to the swap file without evicting it, so
+     * that it can later be evicted cheaply. <tt>VMKernel.memoryLock</tt> may
+     * be released during the write, so any page may have changed by the time
+     * this returns.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is now clean, and still evictable.
+     */
+    public boolean clean(int ppn) {
+	return VMKernel.cleanPage(ppn);
+    }
+
+    private VMProcess[] processes;
+    private int[] vpns;
+    /** Set for each page that is being written out. */
+    private boolean[] cleaning;
+    /** The other processes mapping each shared page, keyed by ppn. */
+    private HashMap<Integer,LinkedList<VMProcess>> sharers =
+	new HashMap<Integer,LinkedList<VMProcess>>();
+}
@@ -0,0 +1,191 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A hashed inverted page table, mapping a process ID and virtual page number
+ * to the translation of every resident page. It is the only record of which
+ * pages are resident: processes keep no page table of their own, just where
+ * each page comes from when it is not resident. A TLB miss can be refilled
+ * with a single hash lookup, however large the address space is, and the
+ * table grows with the number of resident pages rather than with the size
+ * of each process's virtual memory.
+ *
+ * <p>
+ * The table also counts how many times each resident page is pinned.
+ * Entries are reused once removed, so a translation returned by the table
+ * must not be used after its page is removed. The caller must hold
+ * <tt>VMKernel.memoryLock</tt> while using an <tt>InvertedPageTable</tt>.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new, empty inverted page table.
+     *
+     * @param	numPhysPages	the number of physical pages, used to size
+     *				the hash table.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	int numBuckets = 1;
+	while (numBuckets < numPhysPages)
+	    numBuckets *= 2;
+
+	buckets = new Mapping[numBuckets];
+    }
+
+    /**
+     * Return the translation of a resident page.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @return	the translation, or <tt>null</tt> if the page is not resident.
+     */
+    public TranslationEntry lookup(int pid, int vpn) {
+	Mapping m = find(pid, vpn);
+
+	return (m != null) ? m.entry : null;
+    }
+
+    /**
+     * Add a page that has just become resident. Its translation is valid and
+     * unpinned, with the read-only, used and dirty bits clear; the caller
+     * sets them in the returned entry.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page number.
+     * @return	the translation of the page.
+     */
+    TranslationEntry insert(int pid, int vpn, int ppn) {
+	Lib.assertTrue(find(pid, vpn) == null);
+
+	Mapping m = freeMappings;
+	if (m != null)
+	    freeMappings = m.next;
+	else
+	    m = new Mapping();
+
+	int bucket = hash(pid, vpn);
+
+	m.pid = pid;
+	m.vpn = vpn;
+	m.entry.vpn = vpn;
+	m.entry.ppn = ppn;
+	m.entry.valid = true;
+	m.entry.readOnly = false;
+	m.entry.used = false;
+	m.entry.dirty = false;
+	m.pinCount = 0;
+	m.next = buckets[bucket];
+	buckets[bucket] = m;
+	size++;
+
+	return m.entry;
+    }
+
+    /**
+     * Remove the translation of a page that is no longer resident.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     */
+    void remove(int pid, int vpn) {
+	int bucket = hash(pid, vpn);
+
+	Mapping prev = null;
+	for (Mapping m = buckets[bucket]; m != null; prev = m, m = m.next) {
+	    if (m.pid == pid && m.vpn == vpn) {
+		if (prev == null)
+		    buckets[bucket] = m.next;
+		else
+		    prev.next = m.next;
+
+		m.entry.valid = false;
+		m.next = freeMappings;
+		freeMappings = m;
+		size--;
+		return;
+	    }
+	}
+
+	Lib.assertNotReached("no mapping for vpn " + vpn + " of pid " + pid);
+    }
+
+    /**
+     * Keep a resident page resident until it is unpinned as many times as it
+     * has been pinned.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     */
+    void pin(int pid, int vpn) {
+	Mapping m = find(pid, vpn);
+	Lib.assertTrue(m != null);
+
+	m.pinCount++;
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     */
+    void unpin(int pid, int vpn) {
+	Mapping m = find(pid, vpn);
+	Lib.assertTrue(m != null && m.pinCount > 0);
+
+	m.pinCount--;
+    }
+
+    /**
+     * Test whether a resident page is pinned.
+     *
+     * @param	pid	the process ID.
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is resident and pinned.
+     */
+    boolean isPinned(int pid, int vpn) {
+	Mapping m = find(pid, vpn);
+
+	return m != null && m.pinCount > 0;
+    }
+
+    /**
+     * Return the number of resident pages in the table.
+     *
+     * @return	the number of translations.
+     */
+    public int size() {
+	return size;
+    }
+
+    private Mapping find(int pid, int vpn) {
+	for (Mapping m = buckets[hash(pid, vpn)]; m != null; m = m.next) {
+	    if (m.pid == pid && m.vpn == vpn)
+		return m;
+	}
+
+	return null;
+    }
+
+    private int hash(int pid, int vpn) {
+	int h = pid*0x9E3779B1 + vpn;
+	return (h ^ (h >>> 16)) & (buckets.length-1);
+    }
+
+    private static class Mapping {
+	int pid;
+	int vpn;
+	final TranslationEntry entry = new TranslationEntry();
+	int pinCount;
+	Mapping next;
+    }
+
+    private Mapping[] buckets;
+    /** Removed mappings, kept for reuse. */
+    private Mapping freeMappings = null;
+    private int size = 0;
+}
@@ -0,0 +1,308 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A file mapped into memory by <tt>mmap()</tt>. There is one
+ * <tt>MappedFile</tt> for each file name, however many processes map it, so
+ * each page of the file is in memory at most once and is shared by every
+ * process mapping it. A page is read from the file the first time it is
+ * touched. If it has been written, it is written back when it is evicted or
+ * when the last process unmaps it.
+ *
+ * <p>
+ * A page mapped by a single process is recorded in the core map under that
+ * process, so it can be evicted like any other page; a page mapped by
+ * several processes stays in memory until all but one have unmapped it. The
+ * caller must hold <tt>VMKernel.memoryLock</tt> while using a
+ * <tt>MappedFile</tt>.
+ */
+public class MappedFile {
+    /**
+     * Allocate a new mapped file.
+     *
+     * @param	file	the kernel's own handle on the file, closed when the
+     *			last mapping is removed.
+     */
+    MappedFile(OpenFile file) {
+	this.file = file;
+	length = file.length();
+    }
+
+    /**
+     * Return the name of the mapped file.
+     *
+     * @return	the file name.
+     */
+    public String getName() {
+	return file.getName();
+    }
+
+    /**
+     * Return the length of the mapping, which is the length of the file when
+     * it was first mapped.
+     *
+     * @return	the length of the mapping, in bytes.
+     */
+    public int length() {
+	return length;
+    }
+
+    /**
+     * Return the number of pages needed to map the file.
+     *
+     * @return	the number of pages.
+     */
+    public int getNumPages() {
+	return (length + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Return the physical page holding a page of the file, reading it from
+     * the file if it is not in memory. Each call must be matched by a call to
+     * <tt>releasePage()</tt> or <tt>evictPage()</tt>.
+     *
+     * @param	index	the page of the file.
+     * @param	process	the process mapping the page.
+     * @param	vpn	the virtual page the process maps it at.
+     * @return	the physical page number, or -1 if the page could not be
+     *		read in.
+     */
+    int acquirePage(int index, VMProcess process, int vpn) {
+	FilePage page = pages.get(index);
+
+	if (page == null) {
+	    int ppn = VMKernel.allocatePage();
+	    if (ppn == -1)
+		return -1;
+
+	    if (!readPage(index, ppn)) {
+		VMKernel.freePage(ppn);
+		return -1;
+	    }
+
+	    page = new FilePage(ppn);
+	    pages.put(index, page);
+	}
+	else if (page.mappers.size() == 1) {
+	    // the page can no longer be evicted through one process
+	    VMKernel.clearFrameOwner(page.ppn);
+	}
+
+	page.mappers.add(new Mapper(process, vpn));
+	if (page.mappers.size() == 1)
+	    VMKernel.setFrameOwner(page.ppn, process, vpn);
+
+	return page.ppn;
+    }
+
+    /**
+     * Stop mapping a page of the file. If no other process maps the page, it
+     * is written back if it is dirty, and its physical page is freed.
+     *
+     * @param	index	the page of the file.
+     * @param	process	the process that stopped mapping the page.
+     * @param	dirty	<tt>true</tt> if the process wrote to the page.
+     */
+    void releasePage(int index, VMProcess process, boolean dirty) {
+	FilePage page = pages.get(index);
+	Lib.assertTrue(page != null);
+
+	removeMapper(page, process);
+	page.dirty |= dirty;
+
+	if (page.mappers.isEmpty()) {
+	    if (page.dirty)
+		writePage(index, page.ppn);
+
+	    pages.remove(index);
+	    VMKernel.freePage(page.ppn, process);
+	}
+	else if (page.mappers.size() == 1) {
+	    Mapper mapper = page.mappers.getFirst();
+	    VMKernel.setFrameOwner(page.ppn, mapper.process, mapper.vpn);
+	}
+    }
+
+    /**
+     * Evict a page mapped by a single process, writing it back first if it
+     * is dirty. The physical page is not freed.
+     *
+     * @param	index	the page of the file.
+     * @param	dirty	<tt>true</tt> if the process wrote to the page.
+     * @return	<tt>true</tt> if the page was evicted.
+     */
+    boolean evictPage(int index, boolean dirty) {
+	FilePage page = pages.get(index);
+	Lib.assertTrue(page != null && page.mappers.size() == 1);
+
+	if ((dirty || page.dirty) && !writePage(index, page.ppn))
+	    return false;
+
+	pages.remove(index);
+
+	return true;
+    }
+
+    /**
+     * Write a page back to the file if it is dirty, leaving it in memory.
+     *
+     * @param	index	the page of the file.
+     * @param	dirty	<tt>true</tt> if the process wrote to the page.
+     * @return	<tt>true</tt> if the page is now clean.
+     */
+    boolean cleanPage(int index, boolean dirty) {
+	FilePage page = pages.get(index);
+	Lib.assertTrue(page != null);
+
+	if ((dirty || page.dirty) && !writePage(index, page.ppn))
+	    return false;
+
+	page.dirty = false;
+
+	return true;
+    }
+
+    /**
+     * Add a mapping of this file.
+     */
+    void map() {
+	mapCount++;
+    }
+
+    /**
+     * Remove a mapping of this file, whose pages must all have been
+     * released.
+     *
+     * @return	<tt>true</tt> if no mappings are left, in which case the file
+     *		has been closed.
+     */
+    boolean unmap() {
+	Lib.assertTrue(mapCount > 0);
+
+	if (--mapCount > 0)
+	    return false;
+
+	Lib.assertTrue(pages.isEmpty());
+	file.close();
+
+	return true;
+    }
+
+    private void removeMapper(FilePage page, VMProcess process) {
+	for (Iterator<Mapper> i=page.mappers.iterator(); i.hasNext(); ) {
+	    if (i.next().process == process) {
+		i.remove();
+		return;
+	    }
+	}
+
+	Lib.assertNotReached("process does not map the page");
+    }
+
+    /**
+     * Fill a physical page from the file, zero-filling whatever lies past
+     * the end of the file.
+     */
+    private boolean readPage(int index, int ppn) {
+	int pos = index*pageSize;
+	int count = Math.min(pageSize, length - pos);
+
+	Lib.debug(dbgVM, "\treading page " + index + " of " + getName()
+		  + " into ppn " + ppn);
+
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
+	memory.position(ppn*pageSize);
+	memory.put(zeroPage);
+
+	memory.limit(ppn*pageSize + count);
+	memory.position(ppn*pageSize);
+
+	return transfer(pos, memory, false) == count;
+    }
+
+    /**
+     * Write a physical page back to the file, except for whatever lies past
+     * the end of the file.
+     */
+    private boolean writePage(int index, int ppn) {
+	int pos = index*pageSize;
+	int count = Math.min(pageSize, length - pos);
+
+	Lib.debug(dbgVM, "\twriting ppn " + ppn + " back to page " + index
+		  + " of " + getName());
+
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
+	memory.limit(ppn*pageSize + count);
+	memory.position(ppn*pageSize);
+
+	return transfer(pos, memory, true) == count;
+    }
+
+    /**
+     * Move data between the file and physical memory, straight into or out
+     * of memory if the file supports it.
+     */
+    private int transfer(int pos, ByteBuffer memory, boolean write) {
+	if (file instanceof OpenFileWithPosition) {
+	    OpenFileWithPosition positioned = (OpenFileWithPosition) file;
+	    ByteBuffer[] bufs = new ByteBuffer[] { memory };
+
+	    return write ? positioned.write(pos, bufs)
+		: positioned.read(pos, bufs);
+	}
+
+	byte[] data = new byte[memory.remaining()];
+	if (write) {
+	    memory.get(data);
+	    return file.write(pos, data, 0, data.length);
+	}
+
+	int count = file.read(pos, data, 0, data.length);
+	if (count > 0)
+	    memory.put(data, 0, count);
+
+	return count;
+    }
+
+    private static class FilePage {
+	FilePage(int ppn) {
+	    this.ppn = ppn;
+	}
+
+	int ppn;
+	/** Set if a process that has stopped mapping the page wrote to it. */
+	boolean dirty = false;
+	LinkedList<Mapper> mappers = new LinkedList<Mapper>();
+    }
+
+    private static class Mapper {
+	Mapper(VMProcess process, int vpn) {
+	    this.process = process;
+	    this.vpn = vpn;
+	}
+
+	VMProcess process;
+	int vpn;
+    }
+
+    private OpenFile file;
+    private int length;
+    /** The number of mappings of this file, in all processes. */
+    private int mapCount = 0;
+    /** The pages of the file that are in memory, keyed by page index. */
+    private HashMap<Integer,FilePage> pages = new HashMap<Integer,FilePage>();
+
+    private static final byte[] zeroPage = new byte[Processor.pageSize];
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,63 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which physical page to evict when <tt>VMKernel</tt> needs a free
+ * page. The policy is selected by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * Every method is called with <tt>VMKernel.memoryLock</tt> held. The lock
+ * may be released inside <tt>CoreMap.clean()</tt>, so a policy that cleans
+ * pages must not rely on what it learned about other pages before the call.
+ *
+ * @see	nachos.vm.CoreMap
+ */
+public abstract class PageReplacementPolicy {
+    /**
+     * Allocate a new page replacement policy.
+     */
+    public PageReplacementPolicy() {
+    }
+
+    /**
+     * Initialize this policy. Called once, before any other method.
+     *
+     * @param	coreMap	the core map describing every physical page.
+     */
+    public void initialize(CoreMap coreMap) {
+	this.coreMap = coreMap;
+    }
+
+    /**
+     * Called when a physical page is given an owner in the core map.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void pageMapped(int ppn) {
+    }
+
+    /**
+     * Called when a physical page loses its owner in the core map.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void pageUnmapped(int ppn) {
+    }
+
+    /**
+     * Choose a page to evict. The page must be evictable according to
+     * <tt>CoreMap.isEvictable()</tt>.
+     *
+     * @return	the physical page number of the victim, or -1 if no page can
+     *		be evicted.
+     */
+    public abstract int chooseVictim();
+
+    /** The core map describing every physical page. */
+    protected CoreMap coreMap;
+}
@@ -0,0 +1,54 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The enhanced second-chance algorithm. Pages are ranked by their used and
+ * dirty bits, and the hand looks for the lowest class present: first an
+ * unused clean page, then an unused dirty page, clearing used bits as it
+ * goes so that the next sweep finds more candidates. Preferring clean pages
+ * saves writing to the swap file.
+ */
+public class SecondChancePolicy extends PageReplacementPolicy {
+    /**
+     * Allocate a new enhanced second-chance policy.
+     */
+    public SecondChancePolicy() {
+    }
+
+    public int chooseVictim() {
+	int numPhysPages = coreMap.getNumPhysPages();
+
+	// after two rounds every used bit has been cleared
+	for (int round=0; round<2; round++) {
+	    // look for (unused, clean) without touching anything
+	    for (int i=0; i<numPhysPages; i++) {
+		int ppn = (hand+i) % numPhysPages;
+
+		if (coreMap.isEvictable(ppn) && !coreMap.isUsed(ppn) &&
+		    !coreMap.isDirty(ppn))
+		    return advance(ppn);
+	    }
+
+	    // look for (unused, dirty), clearing used bits on the way
+	    for (int i=0; i<numPhysPages; i++) {
+		int ppn = (hand+i) % numPhysPages;
+
+		if (coreMap.isEvictable(ppn) && !coreMap.clearUsed(ppn))
+		    return advance(ppn);
+	    }
+	}
+
+	return -1;
+    }
+
+    private int advance(int ppn) {
+	hand = (ppn+1) % coreMap.getNumPhysPages();
+	return ppn;
+    }
+
+    private int hand = 0;
+}
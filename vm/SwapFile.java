@@ -0,0 +1,189 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A swap area, holding the contents of pages that have been evicted from
+ * physical memory. The swap area is a file in
+ * <tt>ThreadedKernel.fileSystem</tt>, divided into page-sized slots. Freed
+ * slots are reused before the file is grown. A slot may be shared by
+ * several processes, and is only freed once each of them has freed it.
+ *
+ * <p>
+ * A <tt>SwapFile</tt> is not synchronized; callers must make sure that only
+ * one thread uses it at a time. The one exception is <tt>write()</tt>, which
+ * may be called while other threads use the swap file, as long as none of
+ * them uses the same slot.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     *
+     * @param	name	the name of the file to use.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "could not open swap file " + name);
+    }
+
+    /**
+     * Allocate a slot.
+     *
+     * @return	the slot number.
+     */
+    public int allocateSlot() {
+	if (numFree > 0)
+	    return freeSlots[--numFree];
+
+	if (numSlots == shareCount.length) {
+	    int[] newShareCount = new int[shareCount.length*2];
+	    System.arraycopy(shareCount, 0, newShareCount, 0, numSlots);
+	    shareCount = newShareCount;
+	}
+
+	return numSlots++;
+    }
+
+    /**
+     * Add a reference to an allocated slot, so that it is not freed until
+     * <tt>freeSlot()</tt> has been called one more time. The contents of a
+     * shared slot must not be changed.
+     *
+     * @param	slot	the slot number.
+     */
+    public void shareSlot(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots);
+
+	shareCount[slot]++;
+    }
+
+    /**
+     * Drop a reference to a slot, returning it to the free slots if it was
+     * the last one.
+     *
+     * @param	slot	the slot number.
+     */
+    public void freeSlot(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots);
+
+	if (shareCount[slot] > 0) {
+	    shareCount[slot]--;
+	    return;
+	}
+
+	if (numFree == freeSlots.length) {
+	    int[] newFreeSlots = new int[freeSlots.length*2];
+	    System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFree);
+	    freeSlots = newFreeSlots;
+	}
+
+	freeSlots[numFree++] = slot;
+    }
+
+    /**
+     * Write the contents of a physical page to a slot. The page is written
+     * straight from memory if the file supports it, so its contents may be
+     * read at any time until the write returns.
+     *
+     * @param	slot	the slot number.
+     * @param	ppn	the physical page to write.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean write(int slot, int ppn) {
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
+	memory.limit(ppn*pageSize + pageSize);
+	memory.position(ppn*pageSize);
+
+	Lib.debug(dbgVM, "\tswap out ppn " + ppn + " to slot " + slot);
+
+	if (file instanceof OpenFileWithPosition) {
+	    OpenFileWithPosition positioned = (OpenFileWithPosition) file;
+	    return positioned.write(slot*pageSize,
+				    new ByteBuffer[] { memory }) == pageSize;
+	}
+
+	// the shared buffer may be in use by another thread
+	byte[] data = new byte[pageSize];
+	memory.get(data);
+
+	return file.write(slot*pageSize, data, 0, pageSize) == pageSize;
+    }
+
+    /**
+     * Read the contents of a slot into a physical page.
+     *
+     * @param	slot	the slot number.
+     * @param	ppn	the physical page to fill.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    public boolean read(int slot, int ppn) {
+	Lib.debug(dbgVM, "\tswap in slot " + slot + " to ppn " + ppn);
+
+	if (file.read(slot*pageSize, buffer, 0, pageSize) != pageSize)
+	    return false;
+
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
+	memory.position(ppn*pageSize);
+	memory.put(buffer);
+
+	return true;
+    }
+
+    /**
+     * Copy the contents of a slot into a newly allocated slot.
+     *
+     * @param	slot	the slot to copy.
+     * @return	the new slot number, or -1 if the slot could not be copied.
+     */
+    public int duplicateSlot(int slot) {
+	if (file.read(slot*pageSize, buffer, 0, pageSize) != pageSize)
+	    return -1;
+
+	int copy = allocateSlot();
+	if (file.write(copy*pageSize, buffer, 0, pageSize) != pageSize) {
+	    freeSlot(copy);
+	    return -1;
+	}
+
+	return copy;
+    }
+
+    /**
+     * Return the number of slots in use.
+     *
+     * @return	the number of slots in use.
+     */
+    public int numUsed() {
+	return numSlots - numFree;
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+
+    /** The number of slots the file has ever been grown to. */
+    private int numSlots = 0;
+    private int[] freeSlots = new int[16];
+    private int numFree = 0;
+    /** The number of references to each slot, beyond the first. */
+    private int[] shareCount = new int[16];
+
+    private byte[] buffer = new byte[pageSize];
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -5,6 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -21,6 +25,37 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	sharedPagesLock = new Lock();
+
+	memoryLock = new Lock();
+	pageOutNeeded = new Condition(memoryLock);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	coreMap = new CoreMap(numPhysPages);
+	invertedPageTable = new InvertedPageTable(numPhysPages);
+
+	replacementPolicy = (PageReplacementPolicy)
+	    Lib.constructObject(Config.getString("VMKernel.replacementPolicy",
+						 "nachos.vm.WSClockPolicy"));
+	replacementPolicy.initialize(coreMap);
+
+	swapFile = new SwapFile(Config.getString("VMKernel.swapFile",
+						 "nachos.swp"));
+
+	freeFrameReserve =
+	    Config.getInteger("VMKernel.freeFrameReserve",
+			      Math.max(numPhysPages/8, 1));
+	Lib.assertTrue(freeFrameReserve >= 0 &&
+		       freeFrameReserve < numPhysPages);
+
+	maxVirtualPages = Config.getInteger("VMKernel.maxVirtualPages", 1<<16);
+	Lib.assertTrue(maxVirtualPages > 0);
+
+	pageOutThread = new KThread(new Runnable() {
+		public void run() { pageOut(); }
+	    }).setName("page-out");
+	pageOutThread.fork();
     }
 
     /**
@@ -41,9 +76,504 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swapFile.close();
+	
 	super.terminate();
     }
 
+    /**
+     * Allocate a free physical page. Normally the page-out thread keeps a
+     * few pages free; if it has fallen behind, a page is evicted right away.
+     * The caller must hold <tt>memoryLock</tt>.
+     *
+     * @return	the physical page number, or -1 if no page could be freed.
+     */
+    static int allocatePage() {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn = getNextAvailablePage();
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno free pages, evicting synchronously");
+
+	    if (evictPage())
+		ppn = getNextAvailablePage();
+	}
+
+	if (frameAllocator.numFree() < freeFrameReserve)
+	    pageOutNeeded.wake();
+
+	return ppn;
+    }
+
+    /**
+     * Make sure at least one physical page is free, evicting one if
+     * necessary. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @return	<tt>true</tt> if a page is free.
+     */
+    static boolean reservePage() {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	return frameAllocator.numFree() > 0 || evictPage();
+    }
+
+    /**
+     * Return a physical page to the free pages.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void freePage(int ppn) {
+	returnAvailablePage(ppn);
+    }
+
+    /**
+     * Drop a process's reference to a physical page, freeing the page if no
+     * other process maps it.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that stopped mapping the page.
+     */
+    static void freePage(int ppn, VMProcess process) {
+	returnAvailablePage(ppn);
+	pageReleased(ppn, process);
+    }
+
+    /**
+     * Update the core map after a process has stopped mapping a physical
+     * page, whose reference has already been dropped.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that stopped mapping the page.
+     */
+    static void pageReleased(int ppn, VMProcess process) {
+	if (coreMap.getProcess(ppn) != null && coreMap.unmap(ppn, process))
+	    replacementPolicy.pageUnmapped(ppn);
+    }
+
+    /**
+     * Add a reference to an allocated physical page, so that it is not freed
+     * until <tt>freePage()</tt> has been called once more.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that now also maps the page, at the same
+     *			virtual page as its owner.
+     */
+    static void sharePage(int ppn, VMProcess process) {
+	shareAvailablePage(ppn);
+
+	if (coreMap.getProcess(ppn) != null)
+	    coreMap.share(ppn, process);
+    }
+
+    /**
+     * Record which process maps a physical page in the core map, so that the
+     * page can be evicted. Pages with no recorded owner are never evicted.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process mapping the page.
+     * @param	vpn	the virtual page the process maps it at.
+     */
+    static void setFrameOwner(int ppn, VMProcess process, int vpn) {
+	coreMap.map(ppn, process, vpn);
+	replacementPolicy.pageMapped(ppn);
+    }
+
+    /**
+     * Forget the owner of a physical page in the core map, so that the page
+     * is not evicted.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void clearFrameOwner(int ppn) {
+	VMProcess process = coreMap.getProcess(ppn);
+	if (process != null && coreMap.unmap(ppn, process))
+	    replacementPolicy.pageUnmapped(ppn);
+    }
+
+    /**
+     * Evict the page chosen by the replacement policy from every process
+     * mapping it, cleaning it first if it is dirty. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @return	<tt>true</tt> if a page was freed.
+     */
+    private static boolean evictPage() {
+	// a page that changed while it was being cleaned is passed over
+	for (int i=0; i<coreMap.getNumPhysPages(); i++) {
+	    int ppn = replacementPolicy.chooseVictim();
+	    if (ppn == -1)
+		break;
+
+	    if (!coreMap.isEvictable(ppn) ||
+		(coreMap.isDirty(ppn) && !cleanPage(ppn)))
+		continue;
+
+	    // each process drops its own reference, so the page is free once
+	    // the last one has let go of it
+	    int vpn = coreMap.getVPN(ppn);
+	    for (VMProcess process : coreMap.getProcesses(ppn)) {
+		if (!process.pageOut(vpn))
+		    return false;
+	    }
+
+	    Lib.assertTrue(frameAllocator.isFree(ppn));
+
+	    return true;
+	}
+
+	Lib.debug(dbgVM, "\tno page can be evicted");
+	return false;
+    }
+
+    /**
+     * Write a dirty evictable page out, so that it can be evicted without
+     * writing it. A page of a mapped file is written back to the file; any
+     * other page is written to a new swap slot, which replaces the slot of
+     * every process mapping the page. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * <p>
+     * The page-out thread releases <tt>memoryLock</tt> while it writes a
+     * page to the swap file, so that faults are not held up behind the
+     * write. The page cannot be evicted in the meantime, but it can be used,
+     * written, shared or freed; unless it is still mapped and no process has
+     * written it, the new slot is thrown away. A faulting process evicting a
+     * page itself keeps the lock, as it may hold other locks and rely on
+     * state it has already checked. So do writes to mapped files, which must
+     * reach the file in the order they were made.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is now clean, and still evictable.
+     */
+    static boolean cleanPage(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(coreMap.isEvictable(ppn));
+
+	VMProcess owner = coreMap.getProcess(ppn);
+	int vpn = coreMap.getVPN(ppn);
+
+	if (!owner.isSwapBacked(vpn))
+	    return owner.writeBack(vpn);
+
+	// a process that writes the page from now on marks it dirty again
+	for (VMProcess process : coreMap.getProcesses(ppn))
+	    process.clearDirty(vpn);
+
+	int slot = swapFile.allocateSlot();
+	boolean written;
+
+	if (KThread.currentThread() == pageOutThread) {
+	    coreMap.startCleaning(ppn);
+	    memoryLock.release();
+
+	    written = swapFile.write(slot, ppn);
+
+	    memoryLock.acquire();
+	    if (!coreMap.finishCleaning(ppn)) {
+		swapFile.freeSlot(slot);
+		return false;
+	    }
+	}
+	else {
+	    written = swapFile.write(slot, ppn);
+	}
+
+	LinkedList<VMProcess> processes = coreMap.getProcesses(ppn);
+
+	if (!written || coreMap.isDirty(ppn)) {
+	    swapFile.freeSlot(slot);
+
+	    for (VMProcess process : processes)
+		process.setDirty(vpn);
+
+	    return false;
+	}
+
+	for (VMProcess process : processes) {
+	    if (process != processes.getFirst())
+		swapFile.shareSlot(slot);
+
+	    process.setSwapSlot(vpn, slot);
+	}
+
+	return coreMap.isEvictable(ppn);
+    }
+
+    /**
+     * The body of the page-out thread. Whenever fewer than
+     * <tt>freeFrameReserve</tt> pages are free, evict pages until there are
+     * enough again.
+     */
+    private static void pageOut() {
+	memoryLock.acquire();
+
+	while (true) {
+	    while (frameAllocator.numFree() < freeFrameReserve) {
+		if (!evictPage())
+		    break;
+	    }
+
+	    pageOutNeeded.sleep();
+	}
+    }
+
+    /**
+     * Return the <tt>Executable</tt> whose read-only pages a process running
+     * the specified file can share. Processes running the same version of a
+     * file get the same object. A file that has been written since, even if
+     * its length is unchanged, gets a new one. Each call must be matched by a
+     * call to <tt>releaseExecutable()</tt>.
+     *
+     * @param	file	the executable file.
+     * @return	the executable, or <tt>null</tt> if its pages cannot be
+     *		shared because the version of the file cannot be told.
+     */
+    static Executable acquireExecutable(OpenFile file) {
+	String name = file.getName();
+	int length = file.length();
+	long modified = file.lastModified();
+	if (name == null || length < 0 || modified == 0)
+	    return null;
+
+	sharedPagesLock.acquire();
+
+	Executable executable = executables.get(name);
+	if (executable == null || executable.length != length ||
+	    executable.modified != modified) {
+	    executable = new Executable(name, length, modified);
+	    executables.put(name, executable);
+	}
+
+	executable.refCount++;
+
+	sharedPagesLock.release();
+
+	return executable;
+    }
+
+    /**
+     * Stop using an executable returned by <tt>acquireExecutable()</tt>,
+     * after releasing its shared pages.
+     *
+     * @param	executable	the executable.
+     */
+    static void releaseExecutable(Executable executable) {
+	sharedPagesLock.acquire();
+
+	Lib.assertTrue(executable.refCount > 0);
+
+	if (--executable.refCount == 0 &&
+	    executables.get(executable.name) == executable)
+	    executables.remove(executable.name);
+
+	sharedPagesLock.release();
+    }
+
+    /**
+     * Return the physical page holding the specified page of a read-only
+     * section, shared by every process running the same executable. The page
+     * is loaded if no process is using it yet. Each call must be matched by a
+     * call to <tt>releaseSharedPage()</tt>. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * <p>
+     * The page is recorded in the core map under every process using it, so
+     * it can be evicted like any other page. It is never dirty, so it is
+     * simply loaded again the next time a process needs it.
+     *
+     * @param	executable	the executable.
+     * @param	section		the read-only section containing the page.
+     * @param	vpn		the virtual page number.
+     * @param	process		the process that will map the page.
+     * @return	the physical page number, or -1 if no pages are free.
+     */
+    static int acquireSharedPage(Executable executable, CoffSection section,
+				 int vpn, VMProcess process) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(section.isReadOnly());
+
+	sharedPagesLock.acquire();
+
+	if (vpn >= executable.pages.length) {
+	    executable.pages =
+		Arrays.copyOf(executable.pages,
+			      Math.max(vpn+1, executable.pages.length*2));
+	}
+
+	SharedPage page = executable.pages[vpn];
+
+	if (page == null) {
+	    int ppn = allocatePage();
+	    if (ppn == -1) {
+		sharedPagesLock.release();
+		return -1;
+	    }
+
+	    Lib.debug(dbgVM, "\tloading shared vpn " + vpn + " of "
+		      + executable.name + " into ppn " + ppn);
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+
+	    page = new SharedPage(ppn);
+	    executable.pages[vpn] = page;
+
+	    setFrameOwner(ppn, process, vpn);
+	}
+	else {
+	    coreMap.share(page.ppn, process);
+	}
+
+	page.refCount++;
+
+	sharedPagesLock.release();
+
+	return page.ppn;
+    }
+
+    /**
+     * Stop using a page returned by <tt>acquireSharedPage()</tt>, either
+     * because the process is done with it or because the page is being
+     * evicted. The page is freed, and must be loaded again the next time it
+     * is needed, once no process is using it. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	executable	the executable.
+     * @param	vpn		the virtual page number.
+     * @param	process		the process that stopped mapping the page.
+     */
+    static void releaseSharedPage(Executable executable, int vpn,
+				  VMProcess process) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	sharedPagesLock.acquire();
+
+	SharedPage page = executable.pages[vpn];
+	Lib.assertTrue(page != null && page.refCount > 0);
+
+	pageReleased(page.ppn, process);
+
+	if (--page.refCount == 0) {
+	    executable.pages[vpn] = null;
+	    freePage(page.ppn);
+	}
+
+	sharedPagesLock.release();
+    }
+
+    /**
+     * Return the <tt>MappedFile</tt> for an open file, creating it if no
+     * process has the file mapped yet. Each call must be matched by a call to
+     * <tt>unmapFile()</tt>. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	file	the file to map.
+     * @return	the mapped file, or <tt>null</tt> if the file cannot be
+     *		mapped.
+     */
+    static MappedFile mapFile(OpenFile file) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	MappedFile mappedFile = mappedFiles.get(file.getName());
+
+	if (mappedFile == null) {
+	    // the mapping keeps its own handle, which outlives the descriptor
+	    FileSystem fileSystem = file.getFileSystem();
+	    if (fileSystem == null || file.length() < 0)
+		return null;
+
+	    OpenFile handle = fileSystem.open(file.getName(), false);
+	    if (handle == null)
+		return null;
+
+	    mappedFile = new MappedFile(handle);
+	    mappedFiles.put(file.getName(), mappedFile);
+	}
+
+	mappedFile.map();
+
+	return mappedFile;
+    }
+
+    /**
+     * Remove a mapping returned by <tt>mapFile()</tt>, after its pages have
+     * been released. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	mappedFile	the mapped file.
+     */
+    static void unmapFile(MappedFile mappedFile) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	if (mappedFile.unmap())
+	    mappedFiles.remove(mappedFile.getName());
+    }
+
+    /**
+     * One version of an executable file, and the read-only pages shared by
+     * the processes running it.
+     */
+    static class Executable {
+	private Executable(String name, int length, long modified) {
+	    this.name = name;
+	    this.length = length;
+	    this.modified = modified;
+	}
+
+	private String name;
+	private int length;
+	private long modified;
+	/** The number of processes running this executable. */
+	private int refCount = 0;
+	/** The shared page for each virtual page, or <tt>null</tt>. */
+	private SharedPage[] pages = new SharedPage[0];
+    }
+
+    private static class SharedPage {
+	SharedPage(int ppn) {
+	    this.ppn = ppn;
+	}
+
+	int ppn;
+	int refCount = 0;
+    }
+
+    /**
+     * The current version of each executable that processes are running,
+     * keyed by file name. Older versions still running are not listed.
+     */
+    private static HashMap<String,Executable> executables =
+	new HashMap<String,Executable>();
+    private static Lock sharedPagesLock;
+
+    /** Files mapped by <tt>mmap()</tt>, keyed by file name. */
+    private static HashMap<String,MappedFile> mappedFiles =
+	new HashMap<String,MappedFile>();
+
+    /**
+     * Protects the per-page state of every <tt>VMProcess</tt>, the core map,
+     * the inverted page table, mapped files, the replacement policy and the
+     * swap file while pages move in and out of memory.
+     */
+    static Lock memoryLock;
+    /** Keeps <tt>freeFrameReserve</tt> pages free. */
+    private static KThread pageOutThread;
+    /** Signalled when the page-out thread should free more pages. */
+    private static Condition pageOutNeeded;
+    /** The number of pages the page-out thread tries to keep free. */
+    private static int freeFrameReserve;
+    /**
+     * The largest address space a process may have, in pages. Each virtual
+     * page costs a few bytes of kernel memory even if it is never touched.
+     */
+    static int maxVirtualPages;
+
+    /** The process and virtual page mapped to each physical page. */
+    private static CoreMap coreMap;
+    /** The translation of every resident page, keyed by pid and vpn. */
+    static InvertedPageTable invertedPageTable;
+    /** Chooses which page to evict. */
+    private static PageReplacementPolicy replacementPolicy;
+
+    /** Holds the contents of evicted pages. */
+    static SwapFile swapFile;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
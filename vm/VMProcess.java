@@ -5,6 +5,11 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -14,6 +19,9 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	// resident pages are translated by VMKernel.invertedPageTable
+	pageTable = null;
     }
 
     /**
@@ -22,6 +30,12 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	// the inverted page table must be up to date while other threads run,
+	// but the TLB is only flushed if another process runs next
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    syncTLBEntry(processor.readTLBEntry(i));
     }
 
     /**
@@ -29,7 +43,16 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+	processor.setAddressSpace(pid);
+
+	// translations are loaded into the TLB one entry at a time, on misses
+	if (tlbOwner != this) {
+	    for (int i=0; i<processor.getTLBSize(); i++)
+		processor.writeTLBEntry(i, invalidEntry);
+
+	    tlbOwner = this;
+	}
     }
 
     /**
@@ -39,15 +62,1100 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	// loading again replaces the old address space, so give back its pages
+	if (sections != null) {
+	    VMKernel.memoryLock.acquire();
+	    releasePages();
+	    VMKernel.memoryLock.release();
+
+	    if (executable != null)
+		VMKernel.releaseExecutable(executable);
+	}
+
+	sections = new CoffSection[numPages];
+	copyOnWrite = null;
+	swapSlots = new int[numPages];
+	mappings = new Mapping[numPages];
+	programPages = numPages;
+
+	for (int vpn=0; vpn<numPages; vpn++)
+	    swapSlots[vpn] = -1;
+
+	// read-only pages can be shared by processes running the same
+	// executable, as long as it has not been changed in between
+	executable = VMKernel.acquireExecutable(coff.getFile());
+
+	// remember where each page comes from; stack and argument pages are
+	// zero-filled
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tmapping " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++)
+		sections[section.getFirstVPN()+i] = section;
+	}
+
+	return true;
+    }
+
+    /**
+     * Initializes page tables for this process as a copy of <i>parent</i>'s
+     * address space. Resident pages are shared copy-on-write; pages that are
+     * not resident yet are demand-paged from this process's own copy of the
+     * executable.
+     *
+     * @param	parent	the process to copy.
+     * @return	<tt>true</tt> if successful.
+     */
+    protected boolean forkSections(UserProcess parent) {
+	VMProcess vmParent = (VMProcess) parent;
+	if (vmParent.sections == null)
+	    return false;
+
+	OpenFile parentFile = vmParent.coff.getFile();
+	OpenFile file = ThreadedKernel.fileSystem.open(parentFile.getName(),
+						       false);
+	if (file == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return false;
+	}
+
+	try {
+	    coff = new Coff(file);
+	}
+	catch (EOFException e) {
+	    file.close();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    return false;
+	}
+
+	// the parent's shared pages can only be used if this is the same
+	// version of the file
+	executable = VMKernel.acquireExecutable(file);
+	if (executable != vmParent.executable ||
+	    file.length() != parentFile.length()) {
+	    if (executable != null)
+		VMKernel.releaseExecutable(executable);
+	    executable = null;
+
+	    coff.close();
+	    Lib.debug(dbgProcess, "\texecutable changed");
+	    return false;
+	}
+
+	VMKernel.memoryLock.acquire();
+
+	// the parent's pages are about to become read-only, so the TLB must
+	// not keep any writable translations
+	if (tlbOwner == vmParent) {
+	    for (int i=0; i<Machine.processor().getTLBSize(); i++)
+		vmParent.evictTLBEntry(i);
+	}
+
+	numPages = vmParent.numPages;
+	sections = new CoffSection[numPages];
+	copyOnWrite = new boolean[numPages];
+	swapSlots = new int[numPages];
+	mappings = new Mapping[numPages];
+	programPages = vmParent.programPages;
+
+	if (vmParent.copyOnWrite == null)
+	    vmParent.copyOnWrite = new boolean[numPages];
+
+	// mapped files stay shared with the parent, not copied
+	for (Mapping parentMapping : vmParent.mappedFiles) {
+	    Mapping mapping = new Mapping(parentMapping.file,
+					  parentMapping.fileDescriptor,
+					  parentMapping.firstVPN,
+					  parentMapping.numPages);
+	    mapping.file.map();
+	    mappedFiles.add(mapping);
+
+	    for (int i=0; i<mapping.numPages; i++)
+		mappings[mapping.firstVPN+i] = mapping;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    for (int i=0; i<section.getLength(); i++)
+		sections[section.getFirstVPN()+i] = section;
+	}
+
+	boolean success = true;
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = vmParent.translate(vpn);
+
+	    // swapped out pages are copied right away
+	    swapSlots[vpn] = -1;
+	    if (vmParent.swapSlots[vpn] != -1) {
+		swapSlots[vpn] =
+		    VMKernel.swapFile.duplicateSlot(vmParent.swapSlots[vpn]);
+		if (swapSlots[vpn] == -1)
+		    success = false;
+	    }
+
+	    if (entry == null) {
+		// not resident
+		continue;
+	    }
+	    else if (mappings[vpn] != null) {
+		Mapping mapping = mappings[vpn];
+		int ppn = mapping.file.acquirePage(vpn - mapping.firstVPN, this,
+						   vpn);
+		Lib.assertTrue(ppn == entry.ppn);
+	    }
+	    else if (isShared(vpn)) {
+		int ppn = VMKernel.acquireSharedPage(executable, sections[vpn],
+						     vpn, this);
+		Lib.assertTrue(ppn == entry.ppn);
+	    }
+	    else {
+		VMKernel.sharePage(entry.ppn, this);
+
+		if (!entry.readOnly) {
+		    entry.readOnly = true;
+		    vmParent.copyOnWrite[vpn] = true;
+		}
+		copyOnWrite[vpn] = vmParent.copyOnWrite[vpn];
+	    }
+
+	    TranslationEntry copy =
+		VMKernel.invertedPageTable.insert(pid, vpn, entry.ppn);
+	    copy.readOnly = entry.readOnly;
+	    copy.dirty = entry.dirty;
+	}
+
+	VMKernel.memoryLock.release();
+
+	if (!success) {
+	    Lib.debug(dbgVM, "\tcould not copy swapped out pages");
+	    unloadSections();
+	}
+
+	return success;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	if (sections == null)
+	    return;
+
+	VMKernel.memoryLock.acquire();
+	releasePages();
+	sections = null;
+	VMKernel.memoryLock.release();
+
+	if (executable != null) {
+	    VMKernel.releaseExecutable(executable);
+	    executable = null;
+	}
+
+	coff.close();
+    }
+
+    /**
+     * Free every resident page and swap slot of this process, writing back
+     * dirty pages of mapped files, and remove its mappings. The caller must
+     * hold <tt>VMKernel.memoryLock</tt>.
+     */
+    private void releasePages() {
+	Processor processor = Machine.processor();
+	if (tlbOwner == this) {
+	    for (int i=0; i<processor.getTLBSize(); i++)
+		evictTLBEntry(i);
+
+	    tlbOwner = null;
+	}
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = translate(vpn);
+	    if (entry != null) {
+		Mapping mapping = mappings[vpn];
+
+		if (mapping != null)
+		    mapping.file.releasePage(vpn - mapping.firstVPN, this,
+					     entry.dirty);
+		else if (isShared(vpn))
+		    VMKernel.releaseSharedPage(executable, vpn, this);
+		else
+		    VMKernel.freePage(entry.ppn, this);
+
+		VMKernel.invertedPageTable.remove(pid, vpn);
+	    }
+
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.swapFile.freeSlot(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+
+	    mappings[vpn] = null;
+	}
+
+	for (Mapping mapping : mappedFiles)
+	    VMKernel.unmapFile(mapping.file);
+
+	mappedFiles.clear();
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified array.
+     * The pages of the range are paged in and pinned, so none can be evicted
+     * in the middle of the copy, and then copied in one pass, one run of
+     * contiguous physical pages at a time. A long range is copied in chunks
+     * of at most <tt>maxPinnedPages()</tt> pages.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to transfer from virtual memory to
+     *			the array.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	if (data == null || offset < 0 || length < 0 ||
+	    offset+length > data.length)
+	    return 0;
+
+	int amount = 0;
+
+	while (amount < length) {
+	    int chunk = pinRange(vaddr + amount, length - amount);
+	    if (chunk == 0)
+		break;
+
+	    int transferred = super.readVirtualMemory(vaddr + amount, data,
+						      offset + amount, chunk);
+	    unpinRange(vaddr + amount, chunk);
+
+	    amount += transferred;
+	    if (transferred < chunk)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual memory,
+     * pinning the pages of the range and then copying them in one pass, like
+     * <tt>readVirtualMemory()</tt>.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	data	the array containing the data to transfer.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to transfer from the array to
+     *			virtual memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	if (data == null || offset < 0 || length < 0 ||
+	    offset+length > data.length)
+	    return 0;
+
+	int amount = 0;
+
+	while (amount < length) {
+	    int chunk = pinRange(vaddr + amount, length - amount);
+	    if (chunk == 0)
+		break;
+
+	    int transferred = super.writeVirtualMemory(vaddr + amount, data,
+						       offset + amount, chunk);
+	    unpinRange(vaddr + amount, chunk);
+
+	    amount += transferred;
+	    if (transferred < chunk)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified file,
+     * pinning the pages of the range like <tt>readVirtualMemory()</tt>. Each
+     * chunk of pinned pages is written with a single vectored write, so the
+     * file system's per-request cost is paid once per chunk, not once per
+     * page.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	file	the file to write the data to.
+     * @param	length	the number of bytes to transfer from virtual memory to
+     *			the file.
+     * @return	the number of bytes successfully transferred, or -1 if the
+     *		file could not be written.
+     */
+    public int readVirtualMemory(int vaddr, OpenFile file, int length) {
+	if (file == null || length < 0)
+	    return 0;
+
+	int amount = 0;
+
+	while (amount < length) {
+	    int chunk = pinRange(vaddr + amount, length - amount);
+	    if (chunk == 0)
+		break;
+
+	    int transferred = super.readVirtualMemory(vaddr + amount, file,
+						      chunk);
+	    unpinRange(vaddr + amount, chunk);
+
+	    if (transferred == -1)
+		return (amount > 0) ? amount : -1;
+
+	    amount += transferred;
+	    if (transferred < chunk)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from the specified file to this process's virtual memory,
+     * pinning the pages of the range and reading each chunk of them with a
+     * single vectored read, like <tt>readVirtualMemory()</tt>.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	file	the file to read the data from.
+     * @param	length	the number of bytes to transfer from the file to
+     *			virtual memory.
+     * @return	the number of bytes successfully transferred, or -1 if the
+     *		file could not be read.
+     */
+    public int writeVirtualMemory(int vaddr, OpenFile file, int length) {
+	if (file == null || length < 0)
+	    return 0;
+
+	int amount = 0;
+
+	while (amount < length) {
+	    int chunk = pinRange(vaddr + amount, length - amount);
+	    if (chunk == 0)
+		break;
+
+	    int transferred = super.writeVirtualMemory(vaddr + amount, file,
+						       chunk);
+	    unpinRange(vaddr + amount, chunk);
+
+	    if (transferred == -1)
+		return (amount > 0) ? amount : -1;
+
+	    amount += transferred;
+	    if (transferred < chunk)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Page in and pin the pages of a range of virtual memory, starting at its
+     * first page, until a page is not part of the address space or cannot be
+     * paged in, or <tt>maxPinnedPages()</tt> pages are pinned. The pages stay
+     * resident until <tt>unpinRange()</tt> is called with the returned
+     * length.
+     *
+     * @param	vaddr	the first byte of the range.
+     * @param	length	the number of bytes in the range.
+     * @return	the number of bytes at the start of the range that are now
+     *		resident and pinned.
+     */
+    private int pinRange(int vaddr, int length) {
+	if (vaddr < 0 || length <= 0)
+	    return 0;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	int lastVPN = Processor.pageFromAddress(vaddr + Math.min(length - 1,
+							   Integer.MAX_VALUE - vaddr));
+	lastVPN = Math.min(lastVPN, firstVPN + maxPinnedPages() - 1);
+
+	VMKernel.memoryLock.acquire();
+
+	int vpn;
+	for (vpn=firstVPN; vpn<=lastVPN; vpn++) {
+	    if (!isValidPage(vpn) ||
+		(translate(vpn) == null && pageIn(vpn) == null))
+		break;
+
+	    VMKernel.invertedPageTable.pin(pid, vpn);
+	}
+
+	VMKernel.memoryLock.release();
+
+	return (int) Math.max(0, Math.min(length,
+					  (long) vpn*pageSize - vaddr));
+    }
+
+    /**
+     * Unpin the pages of a range pinned by <tt>pinRange()</tt>.
+     *
+     * @param	vaddr	the first byte of the range.
+     * @param	length	the length returned by <tt>pinRange()</tt>.
+     */
+    private void unpinRange(int vaddr, int length) {
+	int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+
+	VMKernel.memoryLock.acquire();
+
+	for (int vpn=Processor.pageFromAddress(vaddr); vpn<=lastVPN; vpn++)
+	    VMKernel.invertedPageTable.unpin(pid, vpn);
+
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Return the most pages a single transfer may pin at once. This leaves
+     * most of memory for other processes, which would otherwise be killed
+     * when they fault and find every frame pinned.
+     */
+    private static int maxPinnedPages() {
+	return Math.max(1, Machine.processor().getNumPhysPages() / 4);
+    }
+
+    /**
+     * Give the specified virtual page a physical page, and fill it from the
+     * swap file if it was evicted after being written, or else from the
+     * executable, or with zeroes if it is not part of an initialized section.
+     * The caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page to page in.
+     * @return	the translation of the page, or <tt>null</tt> if no physical
+     *		page was available.
+     */
+    private TranslationEntry pageIn(int vpn) {
+	Lib.assertTrue(VMKernel.memoryLock.isHeldByCurrentThread());
+
+	Machine.processor().countPageFault();
+
+	CoffSection section = sections[vpn];
+	Mapping mapping = mappings[vpn];
+
+	int ppn;
+	if (mapping != null)
+	    ppn = mapping.file.acquirePage(vpn - mapping.firstVPN, this, vpn);
+	else if (isShared(vpn))
+	    ppn = VMKernel.acquireSharedPage(executable, section, vpn, this);
+	else
+	    ppn = VMKernel.allocatePage();
+
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno free page for vpn " + vpn);
+	    return null;
+	}
+
+	if (mapping != null || isShared(vpn)) {
+	    // already loaded
+	}
+	else if (swapSlots[vpn] != -1) {
+	    if (!VMKernel.swapFile.read(swapSlots[vpn], ppn)) {
+		VMKernel.freePage(ppn);
+		return null;
+	    }
+	}
+	else if (section != null) {
+	    Lib.debug(dbgVM, "\tloading vpn " + vpn + " from "
+		      + section.getName() + " into ppn " + ppn);
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tzero-filling vpn " + vpn + " in ppn " + ppn);
+	    ByteBuffer memory = Machine.processor().getMemoryBuffer();
+	    memory.position(ppn*pageSize);
+	    memory.put(zeroPage);
+	}
+
+	if (mapping == null && !isShared(vpn))
+	    VMKernel.setFrameOwner(ppn, this, vpn);
+
+	TranslationEntry entry = VMKernel.invertedPageTable.insert(pid, vpn, ppn);
+	entry.readOnly = isReadOnly(vpn);
+	// the page is about to be referenced, so it should not be the next
+	// victim
+	entry.used = true;
+
+	return entry;
+    }
+
+    /**
+     * Test whether the specified virtual page can be evicted from the
+     * physical page it is mapped to. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page it should be mapped to.
+     * @return	<tt>true</tt> if the page is resident in <i>ppn</i> and is not
+     *		pinned.
+     */
+    boolean isEvictable(int vpn, int ppn) {
+	if (sections == null || vpn >= numPages)
+	    return false;
+
+	TranslationEntry entry = translate(vpn);
+	return entry != null && entry.ppn == ppn &&
+	    !VMKernel.invertedPageTable.isPinned(pid, vpn);
+    }
+
+    /**
+     * Clear the used bit of a resident page, including in the TLB. The
+     * caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page had been used since the bit was last
+     *		cleared.
+     */
+    boolean clearUsed(int vpn) {
+	int index = syncPage(vpn);
+	if (index != -1) {
+	    Processor processor = Machine.processor();
+	    TranslationEntry entry = processor.readTLBEntry(index);
+	    entry.used = false;
+	    processor.writeTLBEntry(index, entry);
+	}
+
+	TranslationEntry entry = translate(vpn);
+	boolean used = entry.used;
+	entry.used = false;
+
+	return used;
+    }
+
+    /**
+     * Test the used bit of a resident page, including in the TLB. The caller
+     * must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page has been used since the bit was last
+     *		cleared.
+     */
+    boolean isUsed(int vpn) {
+	syncPage(vpn);
+
+	return translate(vpn).used;
+    }
+
+    /**
+     * Test the dirty bit of a resident page, including in the TLB. The
+     * caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page has been written since it was last
+     *		paged in or written to the swap file.
+     */
+    boolean isDirty(int vpn) {
+	syncPage(vpn);
+
+	return translate(vpn).dirty;
+    }
+
+    /**
+     * Write a resident page of a mapped file back to the file if it is
+     * dirty, leaving it resident but clean. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page is now clean.
+     */
+    boolean writeBack(int vpn) {
+	Mapping mapping = mappings[vpn];
+	Lib.assertTrue(mapping != null);
+
+	syncPage(vpn);
+
+	if (!mapping.file.cleanPage(vpn - mapping.firstVPN,
+				    translate(vpn).dirty))
+	    return false;
+
+	clearDirty(vpn);
+
+	return true;
+    }
+
+    /**
+     * Clear the dirty bit of a resident page, including in the TLB. The
+     * caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     */
+    void clearDirty(int vpn) {
+	int index = syncPage(vpn);
+	if (index != -1) {
+	    Processor processor = Machine.processor();
+	    TranslationEntry entry = processor.readTLBEntry(index);
+	    entry.dirty = false;
+	    processor.writeTLBEntry(index, entry);
+	}
+
+	translate(vpn).dirty = false;
+    }
+
+    /**
+     * Set the dirty bit of a resident page, after a failed attempt to write
+     * it out. The caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     */
+    void setDirty(int vpn) {
+	translate(vpn).dirty = true;
+    }
+
+    /**
+     * Record that the contents of a resident page have been written to a
+     * swap slot, freeing the slot that held them before. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @param	slot	the slot now holding the page, to which this process
+     *			holds a reference.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	if (swapSlots[vpn] != -1)
+	    VMKernel.swapFile.freeSlot(swapSlots[vpn]);
+
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Copy the used and dirty bits of a page's TLB entry, if it has one, into
+     * the inverted page table.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the index of the TLB entry, or -1 if the page is not in the
+     *		TLB.
+     */
+    private int syncPage(int vpn) {
+	if (tlbOwner != this)
+	    return -1;
+
+	int index = findTLBEntry(vpn);
+	if (index != -1)
+	    syncTLBEntry(Machine.processor().readTLBEntry(index));
+
+	return index;
+    }
+
+    /**
+     * Evict a resident page, and drop this process's reference to its
+     * physical page. The page is freed once no other process maps it. A page
+     * of a mapped file is written back first if it is dirty; any other page
+     * must already be clean. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page was evicted.
+     */
+    boolean pageOut(int vpn) {
+	if (tlbOwner == this) {
+	    int index = findTLBEntry(vpn);
+	    if (index != -1)
+		evictTLBEntry(index);
+	}
+
+	TranslationEntry entry = translate(vpn);
+	Mapping mapping = mappings[vpn];
+
+	if (mapping != null) {
+	    // pages of a mapped file go back to the file
+	    if (!mapping.file.evictPage(vpn - mapping.firstVPN, entry.dirty))
+		return false;
+	}
+	else {
+	    Lib.assertTrue(!entry.dirty);
+	}
+
+	Lib.debug(dbgVM, "\tevicted vpn " + vpn + " from ppn " + entry.ppn);
+
+	int ppn = entry.ppn;
+	VMKernel.invertedPageTable.remove(pid, vpn);
+
+	if (isShared(vpn))
+	    VMKernel.releaseSharedPage(executable, vpn, this);
+	else
+	    VMKernel.freePage(ppn, this);
+
+	return true;
+    }
+
+    /**
+     * Give this process its own copy of a copy-on-write page. Any TLB entry
+     * for the page is evicted first, so that the next access picks up the
+     * new translation.
+     *
+     * @param	vpn	the virtual page being written.
+     * @return	<tt>true</tt> if the page is now writable.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	VMKernel.memoryLock.acquire();
+
+	// the page must not be evicted while a page is freed for its copy
+	boolean writable = false;
+	if (sections != null && translate(vpn) != null &&
+	    reservePage(vpn)) {
+	    if (tlbOwner == this) {
+		int index = findTLBEntry(vpn);
+		if (index != -1)
+		    evictTLBEntry(index);
+	    }
+
+	    TranslationEntry entry = translate(vpn);
+	    int oldPPN = entry.ppn;
+
+	    writable = super.handleCopyOnWrite(vpn);
+	    if (writable) {
+		if (entry.ppn != oldPPN)
+		    VMKernel.pageReleased(oldPPN, this);
+
+		VMKernel.setFrameOwner(entry.ppn, this, vpn);
+	    }
+	}
+
+	VMKernel.memoryLock.release();
+
+	return writable;
+    }
+
+    /**
+     * Test whether the specified virtual page is part of this process's
+     * address space: either part of the program, its stack and arguments, or
+     * of a mapped file.
+     */
+    private boolean isValidPage(int vpn) {
+	return sections != null && vpn >= 0 && vpn < numPages &&
+	    (vpn < programPages || mappings[vpn] != null);
+    }
+
+    private static final int
+	syscallRead = 6,
+	syscallWrite = 7,
+	syscallClose = 8,
+	syscallMmap = 10;
+
+    /**
+     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+     * <i>syscall</i> argument identifies which syscall the user executed:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * </table>
+     *
+     * <p>
+     * A mapped file cannot be read or written through its file descriptor;
+     * closing the descriptor removes the mapping.
+     * 
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallRead:
+	case syscallWrite:
+	    if (findMapping(a0) != null)
+		return -1;
+	    break;
+	case syscallClose:
+	    Mapping mapping = findMapping(a0);
+	    if (mapping != null) {
+		VMKernel.memoryLock.acquire();
+		unmapFile(mapping);
+		VMKernel.memoryLock.release();
+	    }
+	    break;
+	}
+
+	return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+
+    /**
+     * Handle the mmap() system call. The whole file is mapped at the
+     * specified address, which must be page-aligned and lie past the end of
+     * the address space, which grows to hold the mapping. The mapping must
+     * end within <tt>VMKernel.maxVirtualPages</tt> pages. Nothing is read
+     * until the pages are touched.
+     *
+     * @param	fileDescriptor	the file to map.
+     * @param	address		the virtual address to map it at.
+     * @return	the length of the file, or -1 if it could not be mapped.
+     */
+    private int handleMmap(int fileDescriptor, int address) {
+	OpenFile file = getOpenFile(fileDescriptor);
+	if (file == null || sections == null ||
+	    findMapping(fileDescriptor) != null)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(address);
+	if (address < 0 || Processor.offsetFromAddress(address) != 0 ||
+	    firstVPN < numPages || firstVPN >= VMKernel.maxVirtualPages) {
+	    Lib.debug(dbgVM, "\tcannot map at address " + address);
+	    return -1;
+	}
+
+	VMKernel.memoryLock.acquire();
+
+	MappedFile mappedFile = VMKernel.mapFile(file);
+	if (mappedFile == null) {
+	    VMKernel.memoryLock.release();
+	    Lib.debug(dbgVM, "\tcannot map " + file.getName());
+	    return -1;
+	}
+
+	if (mappedFile.getNumPages() > VMKernel.maxVirtualPages - firstVPN) {
+	    VMKernel.unmapFile(mappedFile);
+	    VMKernel.memoryLock.release();
+	    Lib.debug(dbgVM, "\tcannot map " + file.getName() + " at vpn "
+		      + firstVPN);
+	    return -1;
+	}
+
+	Mapping mapping = new Mapping(mappedFile, fileDescriptor, firstVPN,
+				      mappedFile.getNumPages());
+	extendAddressSpace(firstVPN + mapping.numPages);
+
+	for (int i=0; i<mapping.numPages; i++)
+	    mappings[firstVPN+i] = mapping;
+	mappedFiles.add(mapping);
+
+	VMKernel.memoryLock.release();
+
+	Lib.debug(dbgVM, "\tmapped " + file.getName() + " at vpn " + firstVPN
+		  + " (" + mapping.numPages + " pages)");
+
+	return mappedFile.length();
+    }
+
+    /**
+     * Remove a mapping, writing back its dirty pages once no other process
+     * maps them. The caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	mapping	the mapping to remove.
+     */
+    private void unmapFile(Mapping mapping) {
+	for (int i=0; i<mapping.numPages; i++) {
+	    int vpn = mapping.firstVPN + i;
+	    TranslationEntry entry = translate(vpn);
+
+	    if (entry != null) {
+		if (tlbOwner == this) {
+		    int index = findTLBEntry(vpn);
+		    if (index != -1)
+			evictTLBEntry(index);
+		}
+
+		mapping.file.releasePage(i, this, entry.dirty);
+		VMKernel.invertedPageTable.remove(pid, vpn);
+	    }
+
+	    mappings[vpn] = null;
+	}
+
+	VMKernel.unmapFile(mapping.file);
+	mappedFiles.remove(mapping);
+    }
+
+    /**
+     * Return the mapping of the file open under a descriptor.
+     *
+     * @param	fileDescriptor	the file descriptor.
+     * @return	the mapping, or <tt>null</tt> if the file is not mapped.
+     */
+    private Mapping findMapping(int fileDescriptor) {
+	for (Mapping mapping : mappedFiles) {
+	    if (mapping.fileDescriptor == fileDescriptor)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    /**
+     * Grow the address space to the specified number of pages. The new pages
+     * are invalid until they are mapped. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	newNumPages	the new size of the address space, in pages.
+     */
+    private void extendAddressSpace(int newNumPages) {
+	sections = Arrays.copyOf(sections, newNumPages);
+	mappings = Arrays.copyOf(mappings, newNumPages);
+	if (copyOnWrite != null)
+	    copyOnWrite = Arrays.copyOf(copyOnWrite, newNumPages);
+
+	swapSlots = Arrays.copyOf(swapSlots, newNumPages);
+	Arrays.fill(swapSlots, numPages, newNumPages, -1);
+
+	numPages = newNumPages;
+    }
+
+    /**
+     * Make sure a physical page is free, without evicting the specified
+     * resident page. The caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page to keep resident.
+     * @return	<tt>true</tt> if a page is free.
+     */
+    private boolean reservePage(int vpn) {
+	VMKernel.invertedPageTable.pin(pid, vpn);
+	boolean reserved = VMKernel.reservePage();
+	VMKernel.invertedPageTable.unpin(pid, vpn);
+
+	return reserved;
+    }
+
+    /**
+     * Test whether the specified virtual page is saved to the swap file when
+     * it is evicted, rather than written back to a mapped file or loaded
+     * again from the executable.
+     *
+     * @param	vpn	the virtual page.
+     */
+    boolean isSwapBacked(int vpn) {
+	return mappings[vpn] == null && !isShared(vpn);
+    }
+
+    /**
+     * Test whether the specified virtual page is shared with other processes
+     * running the same executable.
+     */
+    private boolean isShared(int vpn) {
+	return executable != null && sections[vpn] != null &&
+	    sections[vpn].isReadOnly();
+    }
+
+    /**
+     * Test whether the specified virtual page is mapped read-only, because it
+     * is part of a read-only section or is shared copy-on-write.
+     */
+    private boolean isReadOnly(int vpn) {
+	return (sections[vpn] != null && sections[vpn].isReadOnly()) ||
+	    (copyOnWrite != null && copyOnWrite[vpn]);
+    }
+
+    /**
+     * Return the translation of a resident page of this process, from the
+     * inverted page table.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the translation, or <tt>null</tt> if the page is not
+     *		resident.
+     */
+    protected TranslationEntry translate(int vpn) {
+	return VMKernel.invertedPageTable.lookup(pid, vpn);
+    }
+
+    /**
+     * Handle a TLB miss on the specified virtual address, refilling the TLB
+     * from the inverted page table, or paging in the page if it is not
+     * resident.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the miss was handled.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	if (!isValidPage(vpn)) {
+	    Lib.debug(dbgVM, "\tTLB miss on invalid vpn " + vpn);
+	    return false;
+	}
+
+	VMKernel.memoryLock.acquire();
+
+	TranslationEntry entry = translate(vpn);
+	if (entry == null) {
+	    entry = pageIn(vpn);
+	    if (entry == null) {
+		VMKernel.memoryLock.release();
+		return false;
+	    }
+	}
+
+	Processor processor = Machine.processor();
+
+	// replace an invalid entry in the set if there is one
+	int first = processor.getTLBSet(vpn);
+	int ways = processor.getTLBAssociativity();
+	int victim = first + (nextVictim++ % ways);
+	for (int i=first; i<first+ways; i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+
+	evictTLBEntry(victim);
+	processor.writeTLBEntry(victim, entry);
+
+	VMKernel.memoryLock.release();
+
+	return true;
+    }
+
+    /**
+     * Find the TLB entry for a virtual page of this process.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the index of the TLB entry, or -1 if the page is not in the
+     *		TLB.
+     */
+    private int findTLBEntry(int vpn) {
+	Processor processor = Machine.processor();
+
+	int first = processor.getTLBSet(vpn);
+	for (int i=first; i<first+processor.getTLBAssociativity(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && entry.vpn == vpn)
+		return i;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back into the inverted page
+     * table, and invalidate the entry. The entry must belong to this process.
+     *
+     * @param	index	the TLB entry.
+     */
+    private void evictTLBEntry(int index) {
+	Processor processor = Machine.processor();
+	TranslationEntry entry = processor.readTLBEntry(index);
+
+	if (entry.valid) {
+	    syncTLBEntry(entry);
+	    processor.writeTLBEntry(index, invalidEntry);
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of a copy of a TLB entry back into the
+     * inverted page table.
+     *
+     * @param	entry	the TLB entry, as returned by <tt>readTLBEntry()</tt>.
+     */
+    private void syncTLBEntry(TranslationEntry entry) {
+	if (!entry.valid)
+	    return;
+
+	TranslationEntry resident = translate(entry.vpn);
+	if (resident != null && resident.ppn == entry.ppn) {
+	    resident.used |= entry.used;
+	    resident.dirty |= entry.dirty;
+	}
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +1169,61 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    // an invalid address, or no memory to page it in
+	    if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		killProcess(cause);
+	    break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** The section each virtual page is loaded from, or <tt>null</tt>. */
+    private CoffSection[] sections = null;
+    /**
+     * The executable whose read-only pages this process shares, or
+     * <tt>null</tt> if they cannot be shared.
+     */
+    private VMKernel.Executable executable = null;
+    /** The swap slot holding each virtual page, or -1. */
+    private int[] swapSlots = null;
+    /** The mapping each virtual page belongs to, or <tt>null</tt>. */
+    private Mapping[] mappings = null;
+    /** The files this process has mapped. */
+    private LinkedList<Mapping> mappedFiles = new LinkedList<Mapping>();
+    /**
+     * The number of pages holding the program, its stack and its arguments.
+     * Pages past these are valid only while they are mapped.
+     */
+    private int programPages = 0;
+
+    /** A file mapped into this process's address space by <tt>mmap()</tt>. */
+    private static class Mapping {
+	Mapping(MappedFile file, int fileDescriptor, int firstVPN,
+		int numPages) {
+	    this.file = file;
+	    this.fileDescriptor = fileDescriptor;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	}
+
+	MappedFile file;
+	int fileDescriptor;
+	int firstVPN;
+	int numPages;
+    }
+
+    /** The process whose translations are in the TLB, if any. */
+    private static VMProcess tlbOwner = null;
+    /** The TLB entry to replace next, if every entry in a set is valid. */
+    private static int nextVictim = 0;
+
+    private static final TranslationEntry invalidEntry =
+	new TranslationEntry(0, 0, false, false, false, false);
+    private static final byte[] zeroPage = new byte[Processor.pageSize];
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
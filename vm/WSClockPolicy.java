@@ -0,0 +1,87 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps over the
+ * physical pages, but a page is only evicted once it has dropped out of its
+ * process's working set: it has not been used for longer than the window
+ * given by the <tt>nachos.conf</tt> key <tt>WSClockPolicy.window</tt> (in
+ * ticks). Dirty pages outside the working set are written back as the hand
+ * passes them, so that they can be evicted cheaply on a later sweep.
+ */
+public class WSClockPolicy extends PageReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+	super.initialize(coreMap);
+
+	window = Config.getInteger("WSClockPolicy.window", 10000);
+	lastUsed = new long[coreMap.getNumPhysPages()];
+    }
+
+    public void pageMapped(int ppn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public int chooseVictim() {
+	int numPhysPages = coreMap.getNumPhysPages();
+	long time = Machine.timer().getTime();
+
+	// the oldest page outside the working set that could not be cleaned,
+	// and the oldest unused page of all, in case no page is old enough
+	int oldestDirty = -1;
+	int oldest = -1;
+
+	for (int i=0; i<numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!coreMap.isEvictable(ppn))
+		continue;
+
+	    if (coreMap.clearUsed(ppn)) {
+		lastUsed[ppn] = time;
+		continue;
+	    }
+
+	    if (time - lastUsed[ppn] > window) {
+		if (!coreMap.isDirty(ppn) || coreMap.clean(ppn))
+		    return ppn;
+
+		if (oldestDirty == -1 || lastUsed[ppn] < lastUsed[oldestDirty])
+		    oldestDirty = ppn;
+	    }
+
+	    if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+		oldest = ppn;
+	}
+
+	if (oldestDirty != -1)
+	    return oldestDirty;
+	if (oldest != -1)
+	    return oldest;
+
+	// every evictable page was just used; fall back to the first one
+	for (int i=0; i<numPhysPages; i++) {
+	    int ppn = (hand+i) % numPhysPages;
+	    if (coreMap.isEvictable(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    /** The working set window, in ticks. */
+    private long window;
+    /** The time each physical page was last seen to be used. */
+    private long[] lastUsed;
+    private int hand = 0;
+}